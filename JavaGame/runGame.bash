@@ -5,6 +5,8 @@ mkdir classes
 
 javac -d classes/ @sources.txt
 
+java -cp classes/ com.brackeen.javagamebook.tilegame.MapCompiler maps/*.txt
+
 java -cp classes/ com.brackeen.javagamebook.tilegame.GameManager
 
 
@@ -0,0 +1,55 @@
+package com.brackeen.javagamebook.tilegame;
+
+/**
+    An Archetype is the set of components, and their values, that
+    a kind of entity starts with in an EntityWorld, like "an enemy
+    worth 10 points with the grub AI". Every entity also gets a
+    BODY, so it isn't listed.
+*/
+public class Archetype {
+
+    /**
+        An Archetype with no components but the BODY.
+    */
+    public static final Archetype NONE =
+        new Archetype(new int[0], new int[0]);
+
+    private int[] components;
+    private int[] values;
+
+    /**
+        Creates a new Archetype with the specified components,
+        each with the matching value.
+    */
+    public Archetype(int[] components, int[] values) {
+        this.components = new int[components.length];
+        this.values = new int[components.length];
+        System.arraycopy(components, 0, this.components, 0,
+            components.length);
+        System.arraycopy(values, 0, this.values, 0, components.length);
+    }
+
+
+    /**
+        Gets the number of components in this Archetype.
+    */
+    public int size() {
+        return components.length;
+    }
+
+
+    /**
+        Gets the i-th component of this Archetype.
+    */
+    public int getComponent(int i) {
+        return components[i];
+    }
+
+
+    /**
+        Gets the value of the i-th component of this Archetype.
+    */
+    public int getValue(int i) {
+        return values[i];
+    }
+}
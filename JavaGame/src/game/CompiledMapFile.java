@@ -0,0 +1,150 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+    The CompiledMapFile class reads a binary map written by
+    MapCompiler. The file is memory-mapped, so loading a chunk of
+    tiles is a copy out of the mapped file, with no parsing.
+    <p>
+    The format (all values big-endian) is:
+    <pre>
+    int    MAGIC
+    int    VERSION
+    int    width, height (in tiles)
+    int    chunk width (TileMap.CHUNK_WIDTH)
+    int    palette size the tile ids were compiled for
+    int    signature of that palette (TilePalette.getSignature())
+    int    number of Sprites
+    short  tile ids, chunk by chunk, each chunk row by row
+    int    index of the first Sprite of each chunk, plus the
+           total number of Sprites
+    Sprite table, sorted by chunk:
+        int    x (in tiles)
+        short  y (in tiles)
+        short  the map character of the Sprite
+    </pre>
+*/
+public class CompiledMapFile {
+
+    public static final int MAGIC = 0x544D4150; // "TMAP"
+    public static final int VERSION = 2;
+    public static final int HEADER_SIZE = 32;
+    public static final int SPRITE_SIZE = 8;
+
+    private ByteBuffer buffer;
+    private int width;
+    private int height;
+    private int numChunks;
+    private int numSprites;
+    private int chunkIndexOffset;
+    private int spriteOffset;
+
+    /**
+        Opens a compiled map file. Throws an IOException if the
+        file isn't a compiled map, was written by a different
+        version of MapCompiler, or was compiled for a different
+        palette than the specified one.
+    */
+    public CompiledMapFile(File file, TilePalette palette)
+        throws IOException
+    {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                channel.size());
+        }
+        finally {
+            // the mapping stays valid after the channel is closed
+            in.close();
+        }
+
+        if (buffer.capacity() < HEADER_SIZE ||
+            buffer.getInt(0) != MAGIC)
+        {
+            throw new IOException("Not a compiled map: " + file);
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported map version: " +
+                buffer.getInt(4));
+        }
+        width = buffer.getInt(8);
+        height = buffer.getInt(12);
+        if (buffer.getInt(16) != TileMap.CHUNK_WIDTH) {
+            throw new IOException("Map compiled for chunk width " +
+                buffer.getInt(16));
+        }
+        if (buffer.getInt(20) != palette.size()) {
+            throw new IOException("Map compiled for " +
+                buffer.getInt(20) + " tiles, not " + palette.size());
+        }
+        if (buffer.getInt(24) != palette.getSignature()) {
+            throw new IOException("Map compiled for different tiles");
+        }
+        numSprites = buffer.getInt(28);
+        numChunks = (width + TileMap.CHUNK_WIDTH - 1) /
+            TileMap.CHUNK_WIDTH;
+
+        long gridSize = 2L * numChunks * TileMap.CHUNK_WIDTH * height;
+        long size = HEADER_SIZE + gridSize + 4L * (numChunks + 1) +
+            (long)SPRITE_SIZE * numSprites;
+        if (size != buffer.capacity()) {
+            throw new IOException("Wrong size for a compiled map: " +
+                file);
+        }
+        chunkIndexOffset = (int)(HEADER_SIZE + gridSize);
+        spriteOffset = chunkIndexOffset + 4 * (numChunks + 1);
+    }
+
+
+    public int getWidth() {
+        return width;
+    }
+
+
+    public int getHeight() {
+        return height;
+    }
+
+
+    /**
+        Copies the tile ids of a chunk into the specified array.
+    */
+    public synchronized void readChunk(int chunk, short[] tiles) {
+        int chunkSize = TileMap.CHUNK_WIDTH * height;
+        buffer.position(HEADER_SIZE + 2 * chunk * chunkSize);
+        ShortBuffer grid = buffer.asShortBuffer();
+        grid.get(tiles, 0, chunkSize);
+    }
+
+
+    /**
+        Gets the index of the first Sprite in a chunk. The
+        Sprites of a chunk end where the next chunk's start.
+    */
+    public int getFirstSprite(int chunk) {
+        return buffer.getInt(chunkIndexOffset + 4 * chunk);
+    }
+
+
+    public int getSpriteX(int sprite) {
+        return buffer.getInt(spriteOffset + SPRITE_SIZE * sprite);
+    }
+
+
+    public int getSpriteY(int sprite) {
+        return buffer.getShort(spriteOffset + SPRITE_SIZE * sprite + 4);
+    }
+
+
+    /**
+        Gets the map character of a Sprite.
+    */
+    public int getSpriteChar(int sprite) {
+        return buffer.getShort(spriteOffset + SPRITE_SIZE * sprite + 6);
+    }
+}
@@ -0,0 +1,128 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.util.Arrays;
+
+/**
+    A ComponentStore holds one kind of component for the entities
+    of an EntityWorld, as a sparse set. The entities that have the
+    component are packed, with no gaps, in a dense array, next to
+    the component's value for each of them. A sparse array maps an
+    entity id to its place in the dense array. A system that needs
+    the component loops over the dense array only, so it never
+    looks at entities without it.
+    <p>
+    Removing an entity moves the last entity of the dense array
+    into its place, so loop backwards when removing entities in
+    the loop.
+*/
+public class ComponentStore {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int[] entities;
+    private int[] values;
+    private int[] index;
+    private int size;
+
+    /**
+        Creates a new, empty ComponentStore.
+    */
+    public ComponentStore() {
+        entities = new int[INITIAL_CAPACITY];
+        values = new int[INITIAL_CAPACITY];
+        index = new int[INITIAL_CAPACITY];
+        Arrays.fill(index, -1);
+    }
+
+
+    /**
+        Gets the number of entities with this component.
+    */
+    public int size() {
+        return size;
+    }
+
+
+    /**
+        Gets the i-th entity with this component.
+    */
+    public int getEntity(int i) {
+        return entities[i];
+    }
+
+
+    /**
+        Gets the value of the component of the i-th entity.
+    */
+    public int getValue(int i) {
+        return values[i];
+    }
+
+
+    /**
+        Checks if the specified entity has this component.
+    */
+    public boolean has(int entity) {
+        return (entity >= 0 && entity < index.length &&
+            index[entity] >= 0);
+    }
+
+
+    /**
+        Gets the value of the component of the specified entity,
+        or -1 if the entity doesn't have this component.
+    */
+    public int get(int entity) {
+        return has(entity) ? values[index[entity]] : -1;
+    }
+
+
+    /**
+        Gives an entity this component with the specified value,
+        or changes the value if the entity already has it.
+    */
+    public void add(int entity, int value) {
+        if (entity >= index.length) {
+            int[] newIndex = new int[Math.max(entity + 1,
+                index.length * 2)];
+            Arrays.fill(newIndex, -1);
+            System.arraycopy(index, 0, newIndex, 0, index.length);
+            index = newIndex;
+        }
+        if (index[entity] >= 0) {
+            values[index[entity]] = value;
+            return;
+        }
+        if (size == entities.length) {
+            int[] newEntities = new int[size * 2];
+            int[] newValues = new int[size * 2];
+            System.arraycopy(entities, 0, newEntities, 0, size);
+            System.arraycopy(values, 0, newValues, 0, size);
+            entities = newEntities;
+            values = newValues;
+        }
+        entities[size] = entity;
+        values[size] = value;
+        index[entity] = size;
+        size++;
+    }
+
+
+    /**
+        Removes this component from an entity. Does nothing if the
+        entity doesn't have it.
+    */
+    public void remove(int entity) {
+        if (!has(entity)) {
+            return;
+        }
+        // move the last entity into the removed entity's place
+        int i = index[entity];
+        size--;
+        int last = entities[size];
+        entities[i] = last;
+        values[i] = values[size];
+        index[last] = i;
+        index[entity] = -1;
+    }
+}
@@ -0,0 +1,326 @@
+package com.brackeen.javagamebook.tilegame;
+
+import com.brackeen.javagamebook.graphics.BodyStore;
+import com.brackeen.javagamebook.graphics.Sprite;
+
+/**
+    The EntityWorld gives each Sprite in a TileMap an entity id
+    and keeps the components that tell the game's systems what to
+    do with it, one ComponentStore per kind of component:
+    <ul>
+    <li>BODY: every entity. Its position, velocity and collider
+        are kept in the world's BodyStore, in the slot of the
+        entity's id, and its Sprite is updated every tick.
+    <li>AI: an entity that thinks for itself. The value is the
+        kind of AI, like AI_GRUB.
+    <li>ENEMY: a Creature that hurts the player and can be
+        defeated. The value is the score for defeating it.
+    <li>PICKUP: something the player picks up. The value is the
+        effect, like PowerUp.EFFECT_STAR.
+    <li>ACTIVE: an entity near the camera, which is simulated
+        every tick.
+    <li>DORMANT: an entity far from the camera, which isn't. The
+        value is the region it's in.
+    <li>MOTION: an entity that just moves by its velocity, with
+        no physics, moved by move().
+    </ul>
+    A system loops over the store of the component it handles, so
+    adding a kind of entity only means giving it components, not
+    adding a case to every system. The components a new entity
+    gets are given by its Archetype.
+    <p>
+    Every entity is either active or dormant. New entities are
+    active; activate() puts the active entities outside an area
+    to sleep and wakes the dormant ones inside it. Dormant
+    entities are kept in buckets by region (REGION_SIZE pixels
+    wide), so waking the entities of a region doesn't look at
+    the dormant entities anywhere else.
+*/
+public class EntityWorld {
+
+    public static final int BODY = 0;
+    public static final int AI = 1;
+    public static final int ENEMY = 2;
+    public static final int PICKUP = 3;
+    public static final int ACTIVE = 4;
+    public static final int DORMANT = 5;
+    public static final int MOTION = 6;
+    public static final int NUM_COMPONENTS = 7;
+
+    // regions are 512 pixels (eight tiles) wide
+    public static final int REGION_SIZE_BITS = 9;
+    public static final int REGION_SIZE = 1 << REGION_SIZE_BITS;
+
+    /**
+        Walks on the ground, turning at walls, and fires bullets.
+    */
+    public static final int AI_GRUB = 1;
+
+    /**
+        The score for defeating an enemy.
+    */
+    public static final int ENEMY_SCORE = 10;
+
+    private ComponentStore[] stores;
+    private BodyStore bodies;
+    private Sprite[] sprites;
+    private int[] freeIds;
+    private int numFreeIds;
+    private int nextId;
+
+    // dormant entities, by region
+    private int[][] regions;
+    private int[] regionSizes;
+
+    /**
+        Creates a new, empty EntityWorld.
+    */
+    public EntityWorld() {
+        stores = new ComponentStore[NUM_COMPONENTS];
+        for (int i=0; i<NUM_COMPONENTS; i++) {
+            stores[i] = new ComponentStore();
+        }
+        bodies = new BodyStore();
+        sprites = new Sprite[16];
+        freeIds = new int[16];
+        regions = new int[16][];
+        regionSizes = new int[16];
+    }
+
+
+    /**
+        Gets the store of the specified kind of component.
+    */
+    public ComponentStore getStore(int component) {
+        return stores[component];
+    }
+
+
+    /**
+        Gets the bodies of the entities, by entity id.
+    */
+    public BodyStore getBodies() {
+        return bodies;
+    }
+
+
+    /**
+        Gets the Sprite of an entity.
+    */
+    public Sprite getSprite(int entity) {
+        return sprites[entity];
+    }
+
+
+    /**
+        Adds a Sprite as a new entity with only a BODY. Returns
+        the entity id, which is also set in the Sprite.
+    */
+    public int add(Sprite sprite) {
+        return add(sprite, Archetype.NONE);
+    }
+
+
+    /**
+        Adds a Sprite as a new entity with a BODY and the
+        components of the specified Archetype. The Sprite's body
+        is moved into the BodyStore. Returns the entity id, which
+        is also set in the Sprite.
+    */
+    public int add(Sprite sprite, Archetype archetype) {
+        int entity;
+        if (numFreeIds > 0) {
+            entity = freeIds[--numFreeIds];
+        }
+        else {
+            if (nextId == sprites.length) {
+                reserve(1);
+            }
+            entity = nextId++;
+        }
+        sprites[entity] = sprite;
+        sprite.setEntity(entity);
+        bodies.ensureCapacity(entity + 1);
+        sprite.attach(bodies, entity);
+
+        stores[BODY].add(entity, 0);
+        stores[ACTIVE].add(entity, 0);
+        for (int i=0; i<archetype.size(); i++) {
+            stores[archetype.getComponent(i)].add(entity,
+                archetype.getValue(i));
+        }
+        return entity;
+    }
+
+
+    /**
+        Makes room for the specified number of new entities, so
+        adding them grows the arrays at most once.
+    */
+    public void reserve(int count) {
+        int capacity = nextId + count;
+        if (capacity > sprites.length) {
+            Sprite[] newSprites = new Sprite[
+                Math.max(capacity, sprites.length * 2)];
+            System.arraycopy(sprites, 0, newSprites, 0, nextId);
+            sprites = newSprites;
+        }
+        bodies.ensureCapacity(capacity);
+    }
+
+
+    /**
+        Checks if a Sprite is in this world.
+    */
+    public boolean contains(Sprite sprite) {
+        int entity = sprite.getEntity();
+        return (entity >= 0 && entity < nextId &&
+            sprites[entity] == sprite);
+    }
+
+
+    /**
+        Removes the entity of a Sprite and all its components.
+        Does nothing if the Sprite isn't in this world.
+    */
+    public void remove(Sprite sprite) {
+        int entity = sprite.getEntity();
+        if (entity < 0 || entity >= nextId || sprites[entity] != sprite) {
+            return;
+        }
+        if (stores[DORMANT].has(entity)) {
+            removeFromRegion(entity, stores[DORMANT].get(entity));
+        }
+        for (int i=0; i<NUM_COMPONENTS; i++) {
+            stores[i].remove(entity);
+        }
+        sprites[entity] = null;
+        sprite.detach();
+        sprite.setEntity(-1);
+        if (numFreeIds == freeIds.length) {
+            int[] newFreeIds = new int[numFreeIds * 2];
+            System.arraycopy(freeIds, 0, newFreeIds, 0, numFreeIds);
+            freeIds = newFreeIds;
+        }
+        freeIds[numFreeIds++] = entity;
+    }
+
+
+    /**
+        Makes the entities in the specified horizontal range (in
+        pixels) active. Active entities that are outside the
+        range, at the granularity of regions, become dormant, and
+        the dormant entities of the regions in the range wake up.
+    */
+    public void activate(int left, int right) {
+        int first = getRegion(left);
+        int last = getRegion(right);
+
+        // put the entities that left the range to sleep
+        ComponentStore active = stores[ACTIVE];
+        float[] x = bodies.getXArray();
+        for (int i=active.size()-1; i>=0; i--) {
+            int entity = active.getEntity(i);
+            int region = getRegion(x[entity]);
+            if (region < first || region > last) {
+                active.remove(entity);
+                stores[DORMANT].add(entity, region);
+                addToRegion(entity, region);
+            }
+        }
+
+        // wake the regions in the range, all at once
+        last = Math.min(last, regions.length - 1);
+        for (int region=first; region<=last; region++) {
+            int[] entities = regions[region];
+            for (int i=0; i<regionSizes[region]; i++) {
+                stores[DORMANT].remove(entities[i]);
+                active.add(entities[i], 0);
+            }
+            regionSizes[region] = 0;
+        }
+    }
+
+
+    /**
+        Moves the active entities with MOTION by their velocity.
+    */
+    public void move(long elapsedTime) {
+        ComponentStore active = stores[ACTIVE];
+        ComponentStore motion = stores[MOTION];
+        float[] x = bodies.getXArray();
+        float[] y = bodies.getYArray();
+        float[] dx = bodies.getVelocityXArray();
+        float[] dy = bodies.getVelocityYArray();
+        for (int i=0; i<motion.size(); i++) {
+            int entity = motion.getEntity(i);
+            if (active.has(entity) &&
+                (dx[entity] != 0 || dy[entity] != 0))
+            {
+                x[entity] += dx[entity] * elapsedTime;
+                y[entity] += dy[entity] * elapsedTime;
+                bodies.markMoved(entity);
+            }
+        }
+    }
+
+
+    /**
+        Moves a dormant entity to the bucket of the region it's in
+        now, after it has moved.
+    */
+    public void updateRegion(int entity) {
+        int oldRegion = stores[DORMANT].get(entity);
+        int region = getRegion(bodies.getXArray()[entity]);
+        if (oldRegion >= 0 && region != oldRegion) {
+            removeFromRegion(entity, oldRegion);
+            stores[DORMANT].add(entity, region);
+            addToRegion(entity, region);
+        }
+    }
+
+
+    private static int getRegion(float x) {
+        return Math.max(0, Math.round(x) >> REGION_SIZE_BITS);
+    }
+
+
+    private void addToRegion(int entity, int region) {
+        if (region >= regions.length) {
+            int size = Math.max(region + 1, regions.length * 2);
+            int[][] newRegions = new int[size][];
+            int[] newSizes = new int[size];
+            System.arraycopy(regions, 0, newRegions, 0, regions.length);
+            System.arraycopy(regionSizes, 0, newSizes, 0,
+                regions.length);
+            regions = newRegions;
+            regionSizes = newSizes;
+        }
+        int[] entities = regions[region];
+        int size = regionSizes[region];
+        if (entities == null) {
+            entities = new int[4];
+            regions[region] = entities;
+        }
+        else if (size == entities.length) {
+            entities = new int[size * 2];
+            System.arraycopy(regions[region], 0, entities, 0, size);
+            regions[region] = entities;
+        }
+        entities[size] = entity;
+        regionSizes[region] = size + 1;
+    }
+
+
+    private void removeFromRegion(int entity, int region) {
+        int[] entities = regions[region];
+        int size = regionSizes[region];
+        for (int i=0; i<size; i++) {
+            if (entities[i] == entity) {
+                entities[i] = entities[size - 1];
+                regionSizes[region] = size - 1;
+                return;
+            }
+        }
+    }
+}
@@ -3,7 +3,6 @@ package com.brackeen.javagamebook.tilegame;
 import java.awt.*;
 import java.awt.event.KeyEvent;
 import java.util.Iterator;
-import java.util.LinkedList;
 
 import javax.sound.midi.Sequence;
 import javax.sound.midi.Sequencer;
@@ -13,6 +12,7 @@ import com.brackeen.javagamebook.graphics.*;
 import com.brackeen.javagamebook.sound.*;
 import com.brackeen.javagamebook.input.*;
 import com.brackeen.javagamebook.test.GameCore;
+import com.brackeen.javagamebook.util.FramePacer;
 import com.brackeen.javagamebook.tilegame.sprites.*;
 
 /**
@@ -21,7 +21,42 @@ import com.brackeen.javagamebook.tilegame.sprites.*;
 public class GameManager extends GameCore {
 
 	public static void main(String[] args) {
-		new GameManager().run();
+		GameManager game = new GameManager();
+		game.setTickRate(
+				Integer.getInteger("game.tickRate", TICK_RATE).intValue());
+		// -Dgame.pacing=unlimited|fps|refresh|powersave, -Dgame.fps=N
+		int pacing = FramePacer.getMode(
+				System.getProperty("game.pacing", "unlimited"));
+		game.getFramePacer().setMode(
+				(pacing >= 0) ? pacing : FramePacer.UNLIMITED);
+		game.getFramePacer().setTargetFps(
+				Integer.getInteger("game.fps", TARGET_FPS).intValue());
+		// -Dgame.renderThread=true draws on a separate thread
+		game.setRenderThreadEnabled(Boolean.getBoolean("game.renderThread"));
+		// -Dgame.profile=true prints asset load times, shows the profiler
+		// and prints it on exit
+		game.getProfiler().setReportOnExit(Boolean.getBoolean("game.profile"));
+		// -Dgame.atlas=false draws each image from its own surface
+		game.atlasEnabled =
+				!"false".equals(System.getProperty("game.atlas"));
+		// -Dgame.tileCache=true draws the tiles from cached blocks
+		game.tileCacheEnabled = Boolean.getBoolean("game.tileCache");
+		game.readSimulationProperties();
+		game.run();
+	}
+
+
+	/**
+		Sets the simulation options from the system properties.
+		-Dgame.activationMargin=N simulates creatures up to N
+		pixels off screen, and -Dgame.dormantUpdate=N updates the
+		others every N ms (0 freezes them).
+	 */
+	public void readSimulationProperties() {
+		setActivationMargin(Integer.getInteger(
+				"game.activationMargin", ACTIVATION_MARGIN).intValue());
+		setDormantUpdateTime(
+				Integer.getInteger("game.dormantUpdate", 0).intValue());
 	}
 
 	// uncompressed, 44100Hz, 16-bit, mono, signed, little-endian
@@ -30,15 +65,33 @@ public class GameManager extends GameCore {
 
 	private static final int DRUM_TRACK = 1;
 
+	// simulation ticks per second; -Dgame.tickRate=0 updates once per frame
+	private static final int TICK_RATE = 60;
+	// frame rate used by -Dgame.pacing=fps
+	private static final int TARGET_FPS = 60;
+	// how far (in pixels) off screen entities are still simulated
+	private static final int ACTIVATION_MARGIN = 512;
+	// screen width assumed when running without a screen
+	private static final int HEADLESS_VIEW_WIDTH = 800;
+
 	public static final float GRAVITY = 0.002f;
 	private static final long B_COOLDOWN = 200; // 0.2 second cooldown between shots
 	private static final long FIRE_COOLDOWN = 1000; // 1 second cooldown after firing MAX B COUNT shots
 	private static final long B_LIFESPAN = 400; // bullet survives for 0.4 seconds
 	private static final int MAX_B_COUNT = 10;  // Number of bullets that can be fired continuously
+	// how far (in pixels) a bullet can get from the screen: it's fired
+	// from the player, who is always on screen
+	private static final int B_RANGE = (int)(B_LIFESPAN * ProjectilePool.SPEED);
+	// the activation margin must cover the bullet range plus the width
+	// of an enemy (entities are activated by their left edge), so
+	// bullets never reach dormant enemies
+	private static final int MIN_ACTIVATION_MARGIN =
+		B_RANGE + TileMapRenderer.tilesToPixels(1);
 	private static final long P_HEALTH_UP_TIMER = 1000; // Every 1 second player is motionless, he gains health
 
 
 	private Point pointCache = new Point();
+	private ProjectileGrid projectileGrid = new ProjectileGrid();
 	private TileMap map;
 	private MidiPlayer midiPlayer;
 	private SoundManager soundManager;
@@ -51,12 +104,19 @@ public class GameManager extends GameCore {
 
 	private InputManager inputManager;
 	private TileMapRenderer renderer;
+	private SnapshotBuffer snapshots;
+	private boolean atlasEnabled = true;
+	private boolean tileCacheEnabled;
+	private int activationMargin = ACTIVATION_MARGIN;
+	private int dormantUpdateTime;
+	private long dormantTimer;
 
 	private GameAction moveLeft;
 	private GameAction moveRight;
 	private GameAction jump;
 	private GameAction exit;
 	private GameAction fire;
+	private GameAction toggleProfiler;
 
 
 	// Counters for timing and counting related functions
@@ -84,14 +144,26 @@ public class GameManager extends GameCore {
 		// start resource manager
 		resourceManager = new ResourceManager(
 				screen.getFullScreenWindow().getGraphicsConfiguration());
+		if (getProfiler().isReportOnExit()) {
+			resourceManager.printLoadTimes(System.out);
+		}
 
 		// load resources
 		renderer = new TileMapRenderer();
 		renderer.setBackground(
 				resourceManager.loadImage("background.png"));
+		if (atlasEnabled) {
+			renderer.setTextureAtlas(resourceManager.getTextureAtlas());
+		}
+		renderer.setTileCacheEnabled(tileCacheEnabled);
+		renderer.setProfiler(getProfiler());
+		renderer.setProfilerVisible(getProfiler().isReportOnExit());
 
 		// load first map
-		map = resourceManager.loadNextMap();
+		setMap(resourceManager.loadNextMap());
+		if (isRenderThreadEnabled() && getTickRate() > 0) {
+			snapshots = new SnapshotBuffer();
+		}
 
 		// load sounds
 		soundManager = new SoundManager(PLAYBACK_FORMAT);
@@ -108,7 +180,24 @@ public class GameManager extends GameCore {
 		midiPlayer.play(sequence, true);
 		toggleDrumPlayback();
 
-		// Initialize counters
+		initCounters();
+	}
+
+
+	/**
+		Sets up the game for simulation only: no window, no input
+		devices, no sound and no renderer. GameActions can be
+		pressed directly with getGameAction().
+	 */
+	public void initHeadless() {
+		createGameActions();
+		resourceManager = new ResourceManager(null);
+		setMap(resourceManager.loadNextMap());
+		initCounters();
+	}
+
+
+	private void initCounters() {
 		((Creature)map.getPlayer()).setHealth(20);
 		bTiming = 0;
 		numShots = 0;
@@ -131,12 +220,19 @@ public class GameManager extends GameCore {
 	 */
 	public void stop() {
 		super.stop();
-		midiPlayer.close();
-		soundManager.close();
+		if (midiPlayer != null) {
+			midiPlayer.close();
+		}
+		if (soundManager != null) {
+			soundManager.close();
+		}
+		if (resourceManager != null) {
+			resourceManager.close();
+		}
 	}
 
 
-	private void initInput() {
+	private void createGameActions() {
 		moveLeft = new GameAction("moveLeft");
 		moveRight = new GameAction("moveRight");
 		jump = new GameAction("jump",
@@ -144,6 +240,13 @@ public class GameManager extends GameCore {
 		exit = new GameAction("exit",
 				GameAction.DETECT_INITAL_PRESS_ONLY);
 		fire = new GameAction("fire");	
+		toggleProfiler = new GameAction("toggleProfiler",
+				GameAction.DETECT_INITAL_PRESS_ONLY);
+	}
+
+
+	private void initInput() {
+		createGameActions();
 
 		inputManager = new InputManager(
 				screen.getFullScreenWindow());
@@ -154,6 +257,34 @@ public class GameManager extends GameCore {
 		inputManager.mapToKey(jump, KeyEvent.VK_UP);
 		inputManager.mapToKey(exit, KeyEvent.VK_ESCAPE);
 		inputManager.mapToKey(fire, KeyEvent.VK_S);
+		inputManager.mapToKey(toggleProfiler, KeyEvent.VK_F3);
+	}
+
+
+	/**
+		Gets the GameAction with the specified name ("moveLeft",
+		"moveRight", "jump", "exit", "fire" or "toggleProfiler"),
+		or null if there is no such action.
+	 */
+	public GameAction getGameAction(String name) {
+		GameAction[] actions = { moveLeft, moveRight, jump, exit, fire,
+				toggleProfiler };
+		for (int i=0; i<actions.length; i++) {
+			if (actions[i] != null && actions[i].getName().equals(name)) {
+				return actions[i];
+			}
+		}
+		return null;
+	}
+
+
+	/**
+		Plays a sound, if sound is enabled.
+	 */
+	private void playSound(Sound sound) {
+		if (soundManager != null) {
+			soundManager.play(sound);
+		}
 	}
 
 
@@ -163,6 +294,10 @@ public class GameManager extends GameCore {
 			stop();
 		}
 
+		if (toggleProfiler.isPressed() && renderer != null) {
+			renderer.setProfilerVisible(!renderer.isProfilerVisible());
+		}
+
 		Player player = (Player)map.getPlayer();
 		if (player.isAlive()) {
 			float velocityX = 0;
@@ -188,11 +323,11 @@ public class GameManager extends GameCore {
 		if(fire.isPressed() && player.isAlive() && canShoot) {
 			playerIdle = false;
 			if(bTiming >= B_COOLDOWN && numShots <= MAX_B_COUNT) {
-				Bullet newBullet = new Bullet(player.getX(), player.getY()+30, playerDir);
-				map.addBullet(newBullet);
+				map.getProjectiles().spawn(player.getX(), player.getY()+30,
+						playerDir, ProjectilePool.OWNER_PLAYER);
 				bTiming = 0;
 				numShots++;
-				soundManager.play(shotSound);
+				playSound(shotSound);
 			}
 		}
 
@@ -205,6 +340,57 @@ public class GameManager extends GameCore {
 	}
 
 
+	public void draw(Graphics2D g, float alpha) {
+		if (snapshots == null) {
+			renderer.draw(g, map,
+					screen.getWidth(), screen.getHeight(), alpha);
+			return;
+		}
+
+		// running on the render thread: draw the latest snapshot,
+		// interpolated from the time its tick ended
+		WorldSnapshot snapshot = snapshots.getLatest();
+		if (snapshot != null) {
+			alpha = snapshot.getAlpha(System.nanoTime(), getTickNanos());
+			renderer.draw(g, snapshot,
+					screen.getWidth(), screen.getHeight(), alpha);
+		}
+	}
+
+
+	/**
+		Publishes a snapshot of the map for the render thread.
+		Creatures that are on screen are woken up here, since the
+		renderer can't touch them from its own thread.
+	 */
+	protected void publishTick() {
+		wakeUpVisibleCreatures();
+		snapshots.getBackBuffer().capture(map, System.nanoTime(),
+				screen.getWidth(), screen.getHeight());
+		snapshots.publish();
+	}
+
+
+	private void wakeUpVisibleCreatures() {
+		int screenWidth = screen.getWidth();
+		int screenHeight = screen.getHeight();
+		int offsetX = TileMapRenderer.getOffsetX(
+				map.getPlayer().getX(), map, screenWidth);
+		int offsetY = TileMapRenderer.getOffsetY(map, screenHeight);
+		SpatialHash index = map.getSpriteIndex();
+		ComponentStore ai = map.getWorld().getStore(EntityWorld.AI);
+		int count = TileMapRenderer.findVisibleSprites(map, offsetX,
+				offsetY, screenWidth, screenHeight);
+		for (int i=0; i<count; i++) {
+			Sprite sprite = index.getResult(i);
+			int x = Math.round(sprite.getX()) + offsetX;
+			if (ai.has(sprite.getEntity()) && x >= 0 && x < screenWidth) {
+				((Creature)sprite).wakeUp();
+			}
+		}
+	}
+
+
 	/**
 		Gets the current map.
 	 */
@@ -213,10 +399,49 @@ public class GameManager extends GameCore {
 	}
 
 
+	/**
+		Sets how far (in pixels) off screen entities are still
+		simulated every tick. Entities farther away are dormant.
+		The margin is never less than the range of a bullet (plus
+		an enemy's width), since only active enemies are checked
+		for bullet hits.
+	 */
+	public void setActivationMargin(int activationMargin) {
+		this.activationMargin = Math.max(activationMargin,
+				MIN_ACTIVATION_MARGIN);
+	}
+
+
+	/**
+		Sets how often (in ms) dormant creatures get a coarse
+		update, or 0 to freeze them until they're active again.
+	 */
+	public void setDormantUpdateTime(int dormantUpdateTime) {
+		this.dormantUpdateTime = dormantUpdateTime;
+	}
+
+
+	/**
+		Switches to a newly loaded map. Positions are saved right
+		away so the first interpolated frame doesn't blend from
+		the origin.
+	 */
+	private void setMap(TileMap newMap) {
+		if (map != null && map != newMap) {
+			resourceManager.releaseMap(map);
+		}
+		map = newMap;
+		map.savePositions();
+	}
+
+
 	/**
 		Turns on/off drum playback in the midi music (track 1).
 	 */
 	public void toggleDrumPlayback() {
+		if (midiPlayer == null) {
+			return;
+		}
 		Sequencer sequencer = midiPlayer.getSequencer();
 		if (sequencer != null) {
 			sequencer.setTrackMute(DRUM_TRACK,
@@ -250,7 +475,7 @@ public class GameManager extends GameCore {
 		for (int x=fromTileX; x<=toTileX; x++) {
 			for (int y=fromTileY; y<=toTileY; y++) {
 				if (x < 0 || x >= map.getWidth() ||
-						map.getTile(x, y) != null)
+						map.isSolid(x, y))
 				{
 					// collision found, return the tile
 					pointCache.setLocation(x, y);
@@ -303,10 +528,13 @@ public class GameManager extends GameCore {
 	 */
 	public Sprite getSpriteCollision(Sprite sprite) {
 
-		// run through the list of Sprites
-		Iterator i = map.getSprites();
-		while (i.hasNext()) {
-			Sprite otherSprite = (Sprite)i.next();
+		// run through the Sprites near this one
+		SpatialHash index = map.getSpriteIndex();
+		int count = index.query(Math.round(sprite.getX()),
+				Math.round(sprite.getY()),
+				sprite.getWidth(), sprite.getHeight());
+		for (int i=0; i<count; i++) {
+			Sprite otherSprite = index.getResult(i);
 			if (isCollision(sprite, otherSprite)) {
 				// collision found, return the Sprite
 				return otherSprite;
@@ -318,22 +546,25 @@ public class GameManager extends GameCore {
 	}
 
 	/** 
-		Check if any of the given bullets collides with the given sprite 
+		Check if any bullet fired by the given owner collides with
+		the given sprite. Returns the bullet's index in the map's
+		ProjectilePool, or -1 if none does.
 	 **/
-	public Bullet getHitSprite(Sprite sprite, Iterator b) {
-		while (b.hasNext()) {
-			Bullet bullet = (Bullet)b.next();
+	public int getHitProjectile(Sprite sprite, int owner) {
+		ProjectilePool bullets = map.getProjectiles();
+		float sX = sprite.getX();
+		float sY = sprite.getY();
+		for (int i=0; i<bullets.size(); i++) {
+			if (bullets.getOwner(i) != owner) continue;
 			// check if the bullet lies within the boudaries
-			float bulletX = bullet.getX();
-			float bulletY = bullet.getY();
-			float sX = sprite.getX();
-			float sY = sprite.getY();
+			float bulletX = bullets.getX(i);
+			float bulletY = bullets.getY(i);
 			if(bulletX > sX && bulletX < sX + sprite.getWidth() &&
 					bulletY > sY && bulletY < sY + sprite.getHeight()) {
-				return bullet;
+				return i;
 			}
 		}
-		return null;
+		return -1;
 	}
 
 	/**
@@ -343,9 +574,12 @@ public class GameManager extends GameCore {
 	public void update(long elapsedTime) {
 		Creature player = (Creature)map.getPlayer();
 
+		// remember where everything was at the start of the tick
+		map.savePositions();
+
 		// player is dead! start map over
 		if (player.getState() == Creature.STATE_DEAD) {
-			map = resourceManager.reloadMap();
+			setMap(resourceManager.reloadMap());
 			playerMovePosition = 3;
 			return;
 		}
@@ -361,6 +595,12 @@ public class GameManager extends GameCore {
 		if(playerInvc) playerInvcTimer += elapsedTime;
 		if(!canShoot) canShootTimer += elapsedTime;
 
+		// animate the grubs and power ups all at once
+		AnimationClock clock = resourceManager.getAnimationClock();
+		if (clock != null) {
+			clock.update(elapsedTime);
+		}
+
 		// get keyboard/mouse input
 		checkInput(elapsedTime);
 
@@ -368,10 +608,16 @@ public class GameManager extends GameCore {
 		updateCreature(player, elapsedTime);
 		player.update(elapsedTime);
 
+		// load the part of the map around the player
+		map.streamAround(TileMapRenderer.pixelsToTiles(player.getX()));
+
+		// only simulate the entities near the screen
+		updateActivation(elapsedTime);
+
 		// check player health
 		if(player.getHealth() <= 0 && player.isAlive()) {
 			player.setState(Creature.STATE_DYING);
-			soundManager.play(deathSound);
+			playSound(deathSound);
 		}
 
 		// Update health of player
@@ -400,104 +646,97 @@ public class GameManager extends GameCore {
 		}
 
 
-		// update other sprites
-		Iterator i = map.getSprites();
-		while (i.hasNext()) {
-			Sprite sprite = (Sprite)i.next();
-			if (sprite instanceof Grub) {
-				Grub creature = (Grub)sprite;
-				if (creature.getState() == Creature.STATE_DEAD) {
-					i.remove();
-				}
-				else {
-					updateCreature(creature, elapsedTime);
-				}
+		// update the active creatures with AI, move the active
+		// entities that just move, then update every active entity
+		EntityWorld world = map.getWorld();
+		updateAi(world, elapsedTime);
+		world.move(elapsedTime);
+		ComponentStore active = world.getStore(EntityWorld.ACTIVE);
+		ComponentStore motion = world.getStore(EntityWorld.MOTION);
+		for (int j=0; j<active.size(); j++) {
+			int entity = active.getEntity(j);
+			Sprite sprite = world.getSprite(entity);
+			if (motion.has(entity)) {
+				sprite.updateAnimation(elapsedTime);
+			}
+			else {
+				sprite.update(elapsedTime);
 			}
-			// normal update
-			sprite.update(elapsedTime);
 		}
+		map.updateSpriteIndex();
 
 		// Update bullets
-		Iterator b = map.getBullets();
-		LinkedList BulletToRemove = new LinkedList();
-		while (b.hasNext()) {
-			Bullet bullet = (Bullet)b.next();
-			bullet.update(elapsedTime);		
-
+		ProjectilePool bullets = map.getProjectiles();
+		bullets.update(elapsedTime);
+		// go backwards, since despawning moves the last bullet
+		for (int j=bullets.size()-1; j>=0; j--) {
 			// Remove bullets that go past the bullet life span
-			long life = bullet.getLife();
-			if(life > B_LIFESPAN) BulletToRemove.add(bullet);
+			if(bullets.getLife(j) > B_LIFESPAN) bullets.despawn(j);
 
 			// TODO: Detect bullet collision with tiles
-			else if(map.getTile(TileMapRenderer.pixelsToTiles(bullet.getX()), TileMapRenderer.pixelsToTiles(bullet.getY())) != null) BulletToRemove.add(bullet);
-
-		}
-		Iterator toRemove = BulletToRemove.iterator();
-		while (toRemove.hasNext()) {
-			Bullet remove = (Bullet)toRemove.next();
-			map.removeBullet(remove);
-		}
-
-		// update enemy bullets
-		Iterator eb = map.getEnemyBullets();
-		BulletToRemove = new LinkedList();
-		while (eb.hasNext()) {
-			Bullet bullet = (Bullet)eb.next();
-			bullet.update(elapsedTime);		
-
-			// Remove bullets that go past the bullet life span
-			long life = bullet.getLife();
-			if(life > B_LIFESPAN) BulletToRemove.add(bullet);
-
-			// TODO: Detect bullet collision with tiles
-			else if(map.getTile(TileMapRenderer.pixelsToTiles(bullet.getX()), TileMapRenderer.pixelsToTiles(bullet.getY())) != null) BulletToRemove.add(bullet);
-
-		}
-		toRemove = BulletToRemove.iterator();
-		while (toRemove.hasNext()) {
-			Bullet remove = (Bullet)toRemove.next();
-			map.removeEnemyBullet(remove);
-		}
-
-		Iterator s = map.getSprites();
-		while(s.hasNext()) {
-			Sprite newSprite = (Sprite)s.next();
-			if(newSprite instanceof Grub) {
-				Grub sprite = (Grub)newSprite;
-				if(sprite.toFire()) {
-					int direction = (sprite.getVelocityX() < 0) ? -1:1;
-					Bullet newBullet = new Bullet(sprite.getX(), sprite.getY()+30, direction);
-					map.addEnemyBullet(newBullet);
-					sprite.bulletFired();
-				}
+			else if(map.isSolid(TileMapRenderer.pixelsToTiles(bullets.getX(j)), TileMapRenderer.pixelsToTiles(bullets.getY(j)))) bullets.despawn(j);
+		}
+
+		// let the active grubs fire
+		ComponentStore ai = world.getStore(EntityWorld.AI);
+		for (int j=0; j<active.size(); j++) {
+			int entity = active.getEntity(j);
+			if (ai.get(entity) != EntityWorld.AI_GRUB) continue;
+			Grub sprite = (Grub)world.getSprite(entity);
+			if(sprite.toFire()) {
+				int direction = (sprite.getVelocityX() < 0) ? -1:1;
+				bullets.spawn(sprite.getX(), sprite.getY()+30,
+						direction, ProjectilePool.OWNER_ENEMY);
+				sprite.bulletFired();
 			}
 		}
 
 		// Collision detection for player and bullets
-		eb = map.getEnemyBullets();
-		Bullet hitPlayer = getHitSprite(player, eb);
-		if(hitPlayer != null) {
-			map.removeEnemyBullet(hitPlayer);
+		int hitPlayer = getHitProjectile(player, ProjectilePool.OWNER_ENEMY);
+		if(hitPlayer >= 0) {
+			bullets.despawn(hitPlayer);
 			if(!playerInvc) player.updateHealth(-5);
 		}
 
-		// Collision detection for enemies and player bullets
-		i = map.getSprites();
-		while(i.hasNext()) {
-			Sprite sprite = (Sprite)i.next();
-			if(sprite instanceof Grub) {
-				Grub enemy = (Grub) sprite;
-				b = map.getBullets();
-				Bullet hitEnemy = getHitSprite(enemy, b);
-				if(hitEnemy != null && enemy.isAlive()) {
-					map.removeBullet(hitEnemy);
+		// Collision detection for enemies and player bullets:
+		// bin the bullets once, then each enemy only checks the
+		// bullets in the cells it covers
+		int numBullets = projectileGrid.build(bullets.getXArray(),
+				bullets.getYArray(), bullets.getOwnerArray(),
+				ProjectilePool.OWNER_PLAYER, bullets.size());
+		// (only active enemies are checked: the activation margin
+		// covers the bullet range, so bullets can't reach dormant ones)
+		assert activationMargin >= MIN_ACTIVATION_MARGIN;
+		ComponentStore enemies = world.getStore(EntityWorld.ENEMY);
+		BodyStore bodies = world.getBodies();
+		float[] x = bodies.getXArray();
+		float[] y = bodies.getYArray();
+		int[] width = bodies.getWidthArray();
+		int[] height = bodies.getHeightArray();
+		for(int j=0; j<active.size() &&
+				projectileGrid.getSpentCount() < numBullets; j++) {
+			int entity = active.getEntity(j);
+			int score = enemies.get(entity);
+			if(score < 0) continue;
+			Creature enemy = (Creature)world.getSprite(entity);
+			if(enemy.isAlive()) {
+				int hit = projectileGrid.findHit(x[entity], y[entity],
+						width[entity], height[entity]);
+				if(hit >= 0) {
 					enemy.setState(Creature.STATE_DYING);
-					map.updateScore(10);
+					map.updateScore(score);
 					player.updateHealth(10);
 				}
 			}
 		}
 
+		// remove the bullets that hit, in one pass
+		if(projectileGrid.getSpentCount() > 0) {
+			for(int j=bullets.size()-1; j>=0; j--) {
+				if(projectileGrid.isSpent(j)) bullets.despawn(j);
+			}
+		}
+
 		// Update cooldowns
 		// bullet firing cooldown
 		if(numShots >= MAX_B_COUNT) {
@@ -510,6 +749,94 @@ public class GameManager extends GameCore {
 	}
 
 
+	/**
+		Wakes the entities within the activation margin of the
+		screen and puts the others to sleep. If dormant updates are
+		on, dormant creatures get a coarse update every
+		dormantUpdateTime ms.
+	 */
+	private void updateActivation(long elapsedTime) {
+		int viewWidth = (screen != null) ?
+				screen.getWidth() : HEADLESS_VIEW_WIDTH;
+		int left = -TileMapRenderer.getOffsetX(
+				map.getPlayer().getX(), map, viewWidth);
+		EntityWorld world = map.getWorld();
+		world.activate(left - activationMargin,
+				left + viewWidth + activationMargin);
+
+		if (dormantUpdateTime > 0) {
+			dormantTimer += elapsedTime;
+			if (dormantTimer >= dormantUpdateTime) {
+				updateDormant(world, dormantTimer);
+				dormantTimer = 0;
+			}
+		}
+	}
+
+
+	/**
+		Moves the dormant creatures with AI in one big step, so
+		they don't stand still while they're off screen. Creatures
+		whose tiles have been evicted wait until they're streamed
+		in again, so the step never loads a chunk. The new
+		positions are saved, so a creature that wakes up isn't
+		drawn sliding from where it was before the step.
+	 */
+	private void updateDormant(EntityWorld world, long elapsedTime) {
+		ComponentStore dormant = world.getStore(EntityWorld.DORMANT);
+		ComponentStore ai = world.getStore(EntityWorld.AI);
+		for (int j=0; j<dormant.size(); j++) {
+			int entity = dormant.getEntity(j);
+			if (ai.get(entity) != EntityWorld.AI_GRUB) {
+				continue;
+			}
+			Creature creature = (Creature)world.getSprite(entity);
+			float step = Math.abs(creature.getVelocityX()) *
+					elapsedTime;
+			int firstX = TileMapRenderer.pixelsToTiles(
+					creature.getX() - step) - 1;
+			int lastX = TileMapRenderer.pixelsToTiles(
+					creature.getX() + creature.getWidth() + step) + 1;
+			if (!map.isLoaded(firstX, lastX)) {
+				continue;
+			}
+			updateCreature(creature, elapsedTime);
+			creature.update(elapsedTime);
+			creature.savePosition();
+			map.getSpriteIndex().update(creature);
+			world.updateRegion(entity);
+		}
+	}
+
+
+	/**
+		Runs the AI of every active entity that has one. Dead
+		creatures are removed from the map.
+	 */
+	private void updateAi(EntityWorld world, long elapsedTime) {
+		ComponentStore active = world.getStore(EntityWorld.ACTIVE);
+		ComponentStore ai = world.getStore(EntityWorld.AI);
+		// go backwards, since removing moves the last entity
+		for (int j=active.size()-1; j>=0; j--) {
+			int entity = active.getEntity(j);
+			int kind = ai.get(entity);
+			if (kind < 0) {
+				continue;
+			}
+			Creature creature = (Creature)world.getSprite(entity);
+			if (creature.getState() == Creature.STATE_DEAD) {
+				map.removeSprite(creature);
+				continue;
+			}
+			switch (kind) {
+			case EntityWorld.AI_GRUB:
+				updateCreature(creature, elapsedTime);
+				break;
+			}
+		}
+	}
+
+
 	/**
 		Updates the creature, applying gravity for creatures that
 		aren't flying, and checks collisions.
@@ -593,23 +920,30 @@ public class GameManager extends GameCore {
 
 		// check for player collision with other sprites
 		Sprite collisionSprite = getSpriteCollision(player);
-		if (collisionSprite instanceof PowerUp) {
-			acquirePowerUp((PowerUp)collisionSprite);
+		if (collisionSprite == null) {
+			return;
 		}
-		else if (collisionSprite instanceof Creature) {
+		EntityWorld world = map.getWorld();
+		int entity = collisionSprite.getEntity();
+		int effect = world.getStore(EntityWorld.PICKUP).get(entity);
+		int score = world.getStore(EntityWorld.ENEMY).get(entity);
+		if (effect >= 0) {
+			acquirePickup(collisionSprite, effect);
+		}
+		else if (score >= 0) {
 			Creature badguy = (Creature)collisionSprite;
 			if (canKill) {
 				// kill the badguy and make player bounce
-				soundManager.play(boopSound);
+				playSound(boopSound);
 				badguy.setState(Creature.STATE_DYING);
 				player.setY(badguy.getY() - player.getHeight());
 				player.jump(true);
-				map.updateScore(10);
+				map.updateScore(score);
 				player.updateHealth(10);
 			}
 			else if(!playerInvc){
 				// player dies!
-				soundManager.play(deathSound);
+				playSound(deathSound);
 				player.setState(Creature.STATE_DYING);
 			}
 		}
@@ -621,40 +955,53 @@ public class GameManager extends GameCore {
 		from the map.
 	 */
 	public void acquirePowerUp(PowerUp powerUp) {
+		acquirePickup(powerUp, powerUp.getEffect());
+	}
+
+
+	/**
+		Applies the effect (one of the PowerUp EFFECT constants)
+		of a pickup and removes it from the map.
+	 */
+	private void acquirePickup(Sprite pickup, int effect) {
 		// remove it from the map
-		if(!(powerUp instanceof PowerUp.Gas)) {
-			map.removeSprite(powerUp);
+		if(effect != PowerUp.EFFECT_GAS) {
+			map.removeSprite(pickup);
 		}
 
-		if (powerUp instanceof PowerUp.Star) {
+		switch (effect) {
+		case PowerUp.EFFECT_STAR:
 			// do something here, like give the player points
-			soundManager.play(prizeSound);
+			playSound(prizeSound);
 			playerInvc = true;
-		}
-		else if (powerUp instanceof PowerUp.Music) {
+			break;
+		case PowerUp.EFFECT_MUSIC:
 			// change the music
-			soundManager.play(prizeSound);
+			playSound(prizeSound);
 			toggleDrumPlayback();
-		}
-		else if (powerUp instanceof PowerUp.Goal) {
+			break;
+		case PowerUp.EFFECT_GOAL:
 			// advance to next map
-			soundManager.play(prizeSound,
-					new EchoFilter(2000, .7f), false);
-			map = resourceManager.loadNextMap();
-		}
-		else if (powerUp instanceof PowerUp.Mushroom) {
+			if (soundManager != null) {
+				soundManager.play(prizeSound,
+						new EchoFilter(2000, .7f), false);
+			}
+			setMap(resourceManager.loadNextMap());
+			break;
+		case PowerUp.EFFECT_MUSHROOM:
 			// Played health increases
 			((Creature)map.getPlayer()).updateHealth(5);
-			soundManager.play(prizeSound);
-		}
-		else if (powerUp instanceof PowerUp.Gas) {
+			playSound(prizeSound);
+			break;
+		case PowerUp.EFFECT_GAS:
 			canShoot = false;
 			canShootTimer = 0;
 			canShootMoveCount = 0;
-		}
-		else if (powerUp instanceof PowerUp.Explode) {
+			break;
+		case PowerUp.EFFECT_EXPLODE:
 			((Creature)map.getPlayer()).updateHealth(-10);
-			soundManager.play(explodeSound);
+			playSound(explodeSound);
+			break;
 		}
 	}
 
@@ -0,0 +1,215 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+import com.brackeen.javagamebook.input.GameAction;
+import com.brackeen.javagamebook.tilegame.sprites.Creature;
+
+/**
+    The HeadlessRunner steps a GameManager's simulation for a
+    number of ticks without a window, input devices or sound,
+    pressing GameActions from a script. When it's done, it
+    reports how many ticks per second were simulated.
+    <p>
+    Usage: java HeadlessRunner [ticks] [script]
+    <p>
+    Each line of a script has the form "tick action command",
+    where action is a GameAction name ("moveLeft", "moveRight",
+    "jump", "fire") and command is press, release or tap.
+    Lines starting with "#" are comments. Without a script, the
+    player runs right, firing and jumping once a second.
+*/
+public class HeadlessRunner {
+
+    private static final int DEFAULT_TICKS = 10000;
+    private static final int DEFAULT_TICK_RATE = 60;
+
+    private static final String[] DEFAULT_SCRIPT = {
+        "0 moveRight press",
+        "0 fire press",
+    };
+    private static final int DEFAULT_JUMP_INTERVAL = 60;
+
+    private GameManager game;
+    private ArrayList<ScriptEvent> events;
+    private int nextEvent;
+    private boolean repeatJump;
+
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+
+        int ticks = DEFAULT_TICKS;
+        if (args.length > 0) {
+            ticks = Integer.parseInt(args[0]);
+        }
+        int tickRate = Integer.getInteger("game.tickRate",
+            DEFAULT_TICK_RATE).intValue();
+
+        HeadlessRunner runner = new HeadlessRunner();
+        runner.getGame().readSimulationProperties();
+        if (args.length > 1) {
+            runner.loadScript(args[1]);
+        }
+        else {
+            runner.loadScript(DEFAULT_SCRIPT);
+            runner.repeatJump = true;
+        }
+        runner.run(ticks, Math.max(1, 1000 / Math.max(1, tickRate)));
+        System.exit(0);
+    }
+
+
+    /**
+        Creates a new HeadlessRunner with a headless GameManager.
+    */
+    public HeadlessRunner() {
+        game = new GameManager();
+        game.initHeadless();
+        events = new ArrayList<ScriptEvent>();
+    }
+
+
+    /**
+        Gets the GameManager driven by this runner.
+    */
+    public GameManager getGame() {
+        return game;
+    }
+
+
+    /**
+        Loads an input script from a file.
+    */
+    public void loadScript(String filename) throws IOException {
+        ArrayList<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(
+            new FileReader(filename));
+        while (true) {
+            String line = reader.readLine();
+            if (line == null) {
+                reader.close();
+                break;
+            }
+            lines.add(line);
+        }
+        loadScript(lines.toArray(new String[lines.size()]));
+    }
+
+
+    /**
+        Loads an input script from an array of lines.
+    */
+    public void loadScript(String[] lines) {
+        events.clear();
+        nextEvent = 0;
+        for (int i=0; i<lines.length; i++) {
+            String line = lines[i].trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.split("\\s+");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException(
+                    "Bad script line: " + line);
+            }
+            GameAction action = game.getGameAction(parts[1]);
+            if (action == null) {
+                throw new IllegalArgumentException(
+                    "Unknown action: " + parts[1]);
+            }
+            events.add(new ScriptEvent(Integer.parseInt(parts[0]),
+                action, parts[2]));
+        }
+
+        // events are applied in tick order
+        Collections.sort(events, new Comparator<ScriptEvent>() {
+            public int compare(ScriptEvent a, ScriptEvent b) {
+                return a.tick - b.tick;
+            }
+        });
+    }
+
+
+    /**
+        Runs the simulation for the specified number of ticks,
+        each tickMillis long, and prints a report.
+    */
+    public void run(int ticks, long tickMillis) {
+        long startTime = System.nanoTime();
+        for (int tick=0; tick<ticks; tick++) {
+            applyScript(tick);
+            game.update(tickMillis);
+        }
+        long elapsed = System.nanoTime() - startTime;
+
+        double seconds = elapsed / 1e9;
+        Creature player = (Creature)game.getMap().getPlayer();
+        System.out.println("Ticks:          " + ticks +
+            " (" + tickMillis + " ms each)");
+        System.out.println("Wall time:      " +
+            Math.round(seconds * 1000) + " ms");
+        System.out.println("Ticks/second:   " +
+            Math.round(ticks / seconds));
+        System.out.println("Simulated time: " +
+            (ticks * tickMillis / 1000) + " s");
+        System.out.println("Score:          " +
+            game.getMap().getScore());
+        System.out.println("Health:         " + player.getHealth());
+    }
+
+
+    private void applyScript(int tick) {
+        while (nextEvent < events.size()) {
+            ScriptEvent event = events.get(nextEvent);
+            if (event.tick > tick) {
+                break;
+            }
+            event.apply();
+            nextEvent++;
+        }
+        if (repeatJump && tick % DEFAULT_JUMP_INTERVAL == 0) {
+            game.getGameAction("jump").tap();
+        }
+    }
+
+
+    /**
+        A scripted press, release or tap of a GameAction.
+    */
+    private static class ScriptEvent {
+
+        int tick;
+        GameAction action;
+        String command;
+
+        public ScriptEvent(int tick, GameAction action,
+            String command)
+        {
+            if (!command.equals("press") &&
+                !command.equals("release") &&
+                !command.equals("tap"))
+            {
+                throw new IllegalArgumentException(
+                    "Unknown command: " + command);
+            }
+            this.tick = tick;
+            this.action = action;
+            this.command = command;
+        }
+
+        public void apply() {
+            if (command.equals("press")) {
+                action.press();
+            }
+            else if (command.equals("release")) {
+                action.release();
+            }
+            else {
+                action.tap();
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+/**
+    A HudLabel draws a label followed by a number, like
+    "Score: 90". The text is drawn into an image that is only
+    redrawn when the number or the font changes, so drawing the
+    label every frame doesn't build a String or lay out any text.
+*/
+public class HudLabel {
+
+    // room around the text for glyphs that overhang their bounds
+    private static final int PADDING = 2;
+
+    private String label;
+    private Color color;
+    private int value;
+    private Font font;
+    private BufferedImage image;
+    private int ascent;
+
+    /**
+        Creates a new HudLabel with the specified label, drawn in
+        the specified color.
+    */
+    public HudLabel(String label, Color color) {
+        this.label = label;
+        this.color = color;
+    }
+
+
+    /**
+        Draws the label and the specified number with the left of
+        the baseline at (x, y), like Graphics.drawString(), in the
+        font of the Graphics.
+    */
+    public void draw(Graphics2D g, int value, int x, int y) {
+        if (image == null || value != this.value ||
+            g.getFont() != font)
+        {
+            render(g, value);
+        }
+        g.drawImage(image, x - PADDING, y - ascent - PADDING, null);
+    }
+
+
+    /**
+        Redraws the text image for the specified number.
+    */
+    private void render(Graphics2D g, int value) {
+        String text = label + value;
+        font = g.getFont();
+        FontMetrics metrics = g.getFontMetrics(font);
+        int width = metrics.stringWidth(text) + 2 * PADDING;
+        int height = metrics.getAscent() + metrics.getDescent() +
+            2 * PADDING;
+        if (image == null || image.getWidth() < width ||
+            image.getHeight() < height)
+        {
+            image = g.getDeviceConfiguration().createCompatibleImage(
+                width, height, Transparency.TRANSLUCENT);
+        }
+
+        Graphics2D imageGraphics = image.createGraphics();
+        imageGraphics.setComposite(AlphaComposite.Clear);
+        imageGraphics.fillRect(0, 0, image.getWidth(), image.getHeight());
+        imageGraphics.setComposite(AlphaComposite.SrcOver);
+        imageGraphics.setRenderingHints(g.getRenderingHints());
+        imageGraphics.setFont(font);
+        imageGraphics.setColor(color);
+        imageGraphics.drawString(text, PADDING,
+            metrics.getAscent() + PADDING);
+        imageGraphics.dispose();
+
+        ascent = metrics.getAscent();
+        this.value = value;
+    }
+}
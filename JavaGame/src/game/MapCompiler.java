@@ -0,0 +1,137 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.io.*;
+
+/**
+    The MapCompiler converts text maps into the binary format read
+    by CompiledMapFile. The compiled map is written next to the
+    text map, with a ".map" extension, and ResourceManager loads
+    it instead of the text map as long as it's newer. Tile ids
+    are looked up with the tiles in the images/ directory, so run
+    it from the game directory, and again after adding tiles.
+    <p>
+    Usage: java MapCompiler map1.txt [map2.txt ...]
+*/
+public class MapCompiler {
+
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        ResourceManager resourceManager = new ResourceManager(null);
+        for (int i=0; i<args.length; i++) {
+            long startTime = System.currentTimeMillis();
+            String filename = getCompiledName(args[i]);
+            compile(args[i], filename, resourceManager);
+            System.out.println("Compiled " + args[i] + " to " +
+                filename + " in " +
+                (System.currentTimeMillis() - startTime) + " ms");
+        }
+    }
+
+
+    /**
+        Gets the name of the compiled version of a text map.
+    */
+    public static String getCompiledName(String textFilename) {
+        int dot = textFilename.lastIndexOf('.');
+        if (dot > textFilename.lastIndexOf(File.separatorChar)) {
+            textFilename = textFilename.substring(0, dot);
+        }
+        return textFilename + ".map";
+    }
+
+
+    /**
+        Compiles a text map into a binary map, using the
+        ResourceManager's tiles and Sprites.
+    */
+    public static void compile(String textFilename,
+        String mapFilename, ResourceManager resourceManager)
+        throws IOException
+    {
+        TextMapFile in = new TextMapFile(textFilename);
+        int width = in.getWidth();
+        int height = in.getHeight();
+        int numChunks = (width + TileMap.CHUNK_WIDTH - 1) /
+            TileMap.CHUNK_WIDTH;
+
+        // the Sprite table comes after the grid, so it's kept
+        // in memory until the grid is written
+        int[] firstSprite = new int[numChunks + 1];
+        int[] sprites = new int[64];
+        int numSprites = 0;
+
+        File tempFile = new File(mapFilename + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            out.writeInt(CompiledMapFile.MAGIC);
+            out.writeInt(CompiledMapFile.VERSION);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(TileMap.CHUNK_WIDTH);
+            TilePalette palette = resourceManager.getTilePalette();
+            out.writeInt(palette.size());
+            out.writeInt(palette.getSignature());
+            // number of Sprites, filled in at the end
+            out.writeInt(0);
+
+            byte[] glyphs = new byte[TileMap.CHUNK_WIDTH];
+            SpawnRegistry registry = resourceManager.getSpawnRegistry();
+            for (int chunk=0; chunk<numChunks; chunk++) {
+                firstSprite[chunk] = numSprites;
+                int firstX = chunk * TileMap.CHUNK_WIDTH;
+                for (int y=0; y<height; y++) {
+                    in.readRow(y, firstX, glyphs, glyphs.length);
+                    for (int x=0; x<glyphs.length; x++) {
+                        int ch = glyphs[x];
+                        out.writeShort(resourceManager.getTileId(ch));
+                        if (registry.getFactory(ch) != null) {
+                            if (numSprites * 3 + 3 > sprites.length) {
+                                int[] newSprites =
+                                    new int[sprites.length * 2];
+                                System.arraycopy(sprites, 0,
+                                    newSprites, 0, sprites.length);
+                                sprites = newSprites;
+                            }
+                            sprites[numSprites * 3] = firstX + x;
+                            sprites[numSprites * 3 + 1] = y;
+                            sprites[numSprites * 3 + 2] = ch;
+                            numSprites++;
+                        }
+                    }
+                }
+            }
+            firstSprite[numChunks] = numSprites;
+
+            for (int i=0; i<=numChunks; i++) {
+                out.writeInt(firstSprite[i]);
+            }
+            for (int i=0; i<numSprites; i++) {
+                out.writeInt(sprites[i * 3]);
+                out.writeShort(sprites[i * 3 + 1]);
+                out.writeShort(sprites[i * 3 + 2]);
+            }
+        }
+        finally {
+            out.close();
+            in.close();
+        }
+
+        // fill in the number of Sprites
+        RandomAccessFile file = new RandomAccessFile(tempFile, "rw");
+        try {
+            file.seek(CompiledMapFile.HEADER_SIZE - 4);
+            file.writeInt(numSprites);
+        }
+        finally {
+            file.close();
+        }
+
+        // replace the old compiled map
+        File mapFile = new File(mapFilename);
+        mapFile.delete();
+        if (!tempFile.renameTo(mapFile)) {
+            throw new IOException("Can't write " + mapFilename);
+        }
+    }
+}
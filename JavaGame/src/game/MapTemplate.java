@@ -0,0 +1,260 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.io.*;
+
+import com.brackeen.javagamebook.graphics.Sprite;
+
+/**
+    A MapTemplate is a parsed map that any number of TileMaps can
+    be created from. Chunks of tiles are read from the map file
+    once and shared by every TileMap created from the template
+    (a TileMap copies a chunk before changing it). The Sprites of
+    each chunk are also read once, so creating a map only builds
+    Sprites from a list instead of parsing the file again.
+    <p>
+    Chunks and their Sprite lists are kept until the template's
+    memory budget is used up. Chunks after that are read from
+    the file each time they are needed. Since the start of a level is read first, the
+    part of the map the player respawns in is always kept.
+*/
+public class MapTemplate implements TileMap.ChunkLoader {
+
+    /**
+        A Reader reads the chunks of a map file.
+    */
+    public interface Reader {
+
+        /**
+            Reads the tile ids of a chunk into the specified
+            array, row by row, CHUNK_WIDTH ids per row.
+        */
+        public void readTiles(int chunk, short[] tiles)
+            throws IOException;
+
+        /**
+            Adds the Sprites that start in a chunk to the
+            specified SpriteList.
+        */
+        public void readSprites(int chunk, SpriteList sprites)
+            throws IOException;
+
+        /**
+            Closes the map file.
+        */
+        public void close() throws IOException;
+    }
+
+
+    /**
+        A list of the factories of the Sprites that start in a
+        chunk, their Archetypes and their positions.
+    */
+    public static class SpriteList {
+
+        private SpriteFactory[] factories = new SpriteFactory[4];
+        private Archetype[] archetypes = new Archetype[4];
+        private float[] x = new float[4];
+        private float[] y = new float[4];
+        private int size;
+
+        /**
+            Adds a Sprite to build with the specified factory, as
+            an entity of the specified Archetype, at the specified
+            position (in pixels).
+        */
+        public void add(SpriteFactory factory, Archetype archetype,
+            float x, float y)
+        {
+            if (size == factories.length) {
+                SpriteFactory[] newFactories =
+                    new SpriteFactory[size * 2];
+                Archetype[] newArchetypes = new Archetype[size * 2];
+                float[] newX = new float[size * 2];
+                float[] newY = new float[size * 2];
+                System.arraycopy(factories, 0, newFactories, 0, size);
+                System.arraycopy(archetypes, 0, newArchetypes, 0, size);
+                System.arraycopy(this.x, 0, newX, 0, size);
+                System.arraycopy(this.y, 0, newY, 0, size);
+                factories = newFactories;
+                archetypes = newArchetypes;
+                this.x = newX;
+                this.y = newY;
+            }
+            factories[size] = factory;
+            archetypes[size] = archetype;
+            this.x[size] = x;
+            this.y[size] = y;
+            size++;
+        }
+
+
+        public int size() {
+            return size;
+        }
+
+
+        /**
+            Estimates the bytes of memory this list uses.
+        */
+        long getBytes() {
+            return 64 + 16L * factories.length;
+        }
+    }
+
+
+    private static final SpriteList NO_SPRITES = new SpriteList();
+
+    private Reader reader;
+    private File file;
+    private long lastModified;
+    private int width;
+    private int height;
+    private short[][] chunks;
+    private SpriteList[] sprites;
+    private long cachedBytes;
+    private long memoryBudget;
+    private int numMaps;
+
+    /**
+        Creates a new MapTemplate of the specified size, read
+        from the specified file with the specified Reader.
+    */
+    public MapTemplate(File file, int width, int height,
+        Reader reader)
+    {
+        this.file = file;
+        this.lastModified = file.lastModified();
+        this.width = width;
+        this.height = height;
+        this.reader = reader;
+        int numChunks = (width + TileMap.CHUNK_WIDTH - 1) /
+            TileMap.CHUNK_WIDTH;
+        chunks = new short[numChunks][];
+        sprites = new SpriteList[numChunks];
+        memoryBudget = TileMap.DEFAULT_MEMORY_BUDGET;
+    }
+
+
+    /**
+        Creates a new TileMap from this template. Its chunks are
+        loaded from this template as needed.
+    */
+    public synchronized TileMap createMap(TilePalette palette) {
+        numMaps++;
+        return new TileMap(width, height, palette, this);
+    }
+
+
+    /**
+        Tells this template that a TileMap created from it is no
+        longer used. Returns true if no TileMap created from this
+        template is still in use.
+    */
+    public synchronized boolean releaseMap() {
+        if (numMaps > 0) {
+            numMaps--;
+        }
+        return (numMaps == 0);
+    }
+
+
+    /**
+        Checks if a TileMap created from this template is still
+        in use.
+    */
+    public synchronized boolean isInUse() {
+        return (numMaps > 0);
+    }
+
+
+    /**
+        Checks if this template was read from the specified file,
+        and the file hasn't changed since.
+    */
+    public boolean isReadFrom(File file) {
+        return this.file.equals(file) &&
+            lastModified == file.lastModified();
+    }
+
+
+    /**
+        Sets how many bytes of tiles this template keeps.
+    */
+    public void setMemoryBudget(long bytes) {
+        memoryBudget = bytes;
+    }
+
+
+    /**
+        Closes the map file. TileMaps created from this template
+        can still use the chunks the template has kept.
+    */
+    public void close() throws IOException {
+        reader.close();
+    }
+
+
+    /**
+        Gets the tile ids of a chunk, reading the chunk from the
+        map file if it isn't kept.
+    */
+    public synchronized short[] loadTiles(int chunk)
+        throws IOException
+    {
+        if (chunks[chunk] != null) {
+            return chunks[chunk];
+        }
+        short[] tiles = new short[TileMap.CHUNK_WIDTH * height];
+        reader.readTiles(chunk, tiles);
+        if (cachedBytes + tiles.length * 2 <= memoryBudget) {
+            chunks[chunk] = tiles;
+            cachedBytes += tiles.length * 2;
+        }
+        return tiles;
+    }
+
+
+    /**
+        Adds new Sprites for the Sprites that start in a chunk to
+        the map.
+    */
+    public void spawnSprites(TileMap map, int chunk)
+        throws IOException
+    {
+        SpriteList list = getSprites(chunk);
+        if (list.size == 0) {
+            return;
+        }
+        Sprite[] chunkSprites = new Sprite[list.size];
+        Archetype[] archetypes = new Archetype[list.size];
+        for (int i=0; i<list.size; i++) {
+            Sprite sprite = list.factories[i].create();
+            sprite.setX(list.x[i]);
+            sprite.setY(list.y[i]);
+            chunkSprites[i] = sprite;
+            archetypes[i] = list.archetypes[i];
+        }
+        map.addChunkSprites(chunk, chunkSprites, archetypes);
+    }
+
+
+    private synchronized SpriteList getSprites(int chunk)
+        throws IOException
+    {
+        if (sprites[chunk] != null) {
+            return sprites[chunk];
+        }
+        SpriteList list = new SpriteList();
+        reader.readSprites(chunk, list);
+        if (list.size == 0) {
+            // costs nothing to keep
+            sprites[chunk] = NO_SPRITES;
+            return NO_SPRITES;
+        }
+        if (cachedBytes + list.getBytes() <= memoryBudget) {
+            sprites[chunk] = list;
+            cachedBytes += list.getBytes();
+        }
+        return list;
+    }
+}
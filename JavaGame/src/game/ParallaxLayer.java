@@ -0,0 +1,150 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.awt.*;
+
+/**
+    A ParallaxLayer is one layer of the background behind a
+    TileMap. Layers scroll slower than the map, so they appear to
+    be farther away. The bottom of a layer is lined up with the
+    bottom of the screen.
+    <p>
+    A layer either repeats its image horizontally, scrolling a
+    fixed fraction of the map's speed, or fits its image to the
+    map: the left of the image shows at the left of the map and
+    the right of the image at the right of the map, like the
+    original single background.
+    <p>
+    The image is copied once into an image compatible with the
+    screen, so it can be kept in video memory, and each frame only
+    the part of it that is on screen is drawn.
+*/
+public class ParallaxLayer {
+
+    private Image source;
+    private Image image;
+    private GraphicsConfiguration gc;
+    private float scrollFactor;
+    private boolean fit;
+
+    /**
+        Creates a layer that fits the specified image to the
+        width of the map.
+    */
+    public ParallaxLayer(Image image) {
+        this.source = image;
+        this.fit = true;
+    }
+
+
+    /**
+        Creates a layer that repeats the specified image
+        horizontally and scrolls scrollFactor times as fast as the
+        map (0 doesn't scroll at all, 1 scrolls with the map).
+    */
+    public ParallaxLayer(Image image, float scrollFactor) {
+        this.source = image;
+        this.scrollFactor = scrollFactor;
+    }
+
+
+    /**
+        Checks if this layer covers a screen of the specified
+        size, so nothing behind it needs to be drawn.
+    */
+    public boolean covers(int screenWidth, int screenHeight) {
+        Image image = (this.image != null) ? this.image : source;
+        return (getTransparency(source) == Transparency.OPAQUE &&
+            image.getHeight(null) >= screenHeight &&
+            (!fit || image.getWidth(null) >= screenWidth));
+    }
+
+
+    /**
+        Draws this layer for a map of the specified width (in
+        pixels) drawn at offsetX.
+    */
+    public void draw(Graphics2D g, int offsetX, int mapWidth,
+        int screenWidth, int screenHeight)
+    {
+        Image image = getImage(g.getDeviceConfiguration());
+        int width = image.getWidth(null);
+        int height = image.getHeight(null);
+        int y = screenHeight - height;
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+
+        if (fit) {
+            int x = 0;
+            if (mapWidth > screenWidth) {
+                // use long math, since the product can overflow
+                // an int on long maps
+                x = (int)((long)offsetX * (screenWidth - width) /
+                    (screenWidth - mapWidth));
+            }
+            drawSlice(g, image, x, y, screenWidth);
+        }
+        else {
+            // the left of the first copy of the image on screen
+            int x = Math.round(offsetX * scrollFactor) % width;
+            if (x > 0) {
+                x -= width;
+            }
+            for (; x<screenWidth; x+=width) {
+                drawSlice(g, image, x, y, screenWidth);
+            }
+        }
+    }
+
+
+    /**
+        Draws the part of an image drawn at (x, y) that is on
+        screen.
+    */
+    private static void drawSlice(Graphics2D g, Image image, int x,
+        int y, int screenWidth)
+    {
+        int width = image.getWidth(null);
+        int height = image.getHeight(null);
+        int left = Math.max(x, 0);
+        int right = Math.min(x + width, screenWidth);
+        int top = Math.max(y, 0);
+        if (left >= right || top >= y + height) {
+            return;
+        }
+        g.drawImage(image, left, top, right, y + height,
+            left - x, top - y, right - x, height, null);
+    }
+
+
+    /**
+        Gets the image of this layer, copying it into an image
+        compatible with the specified GraphicsConfiguration the
+        first time it's drawn there.
+    */
+    private Image getImage(GraphicsConfiguration gc) {
+        if (image == null || this.gc != gc) {
+            int width = source.getWidth(null);
+            int height = source.getHeight(null);
+            if (gc == null || width <= 0 || height <= 0) {
+                return source;
+            }
+            image = gc.createCompatibleImage(width, height,
+                getTransparency(source));
+            Graphics2D g = (Graphics2D)image.getGraphics();
+            g.setComposite(AlphaComposite.Src);
+            g.drawImage(source, 0, 0, null);
+            g.dispose();
+            this.gc = gc;
+        }
+        return image;
+    }
+
+
+    private static int getTransparency(Image image) {
+        if (image instanceof Transparency) {
+            return ((Transparency)image).getTransparency();
+        }
+        return Transparency.TRANSLUCENT;
+    }
+}
@@ -0,0 +1,167 @@
+package com.brackeen.javagamebook.tilegame;
+
+/**
+    The ProjectileGrid bins projectile positions into a uniform
+    grid once per tick, so the projectiles hitting a target can be
+    found by looking only at the cells the target covers.
+    <p>
+    Binning is a counting sort: one pass counts the projectiles in
+    each bucket, a prefix sum turns the counts into offsets, and a
+    second pass writes the projectile indices in bucket order. No
+    objects are allocated once the arrays are big enough.
+    <p>
+    Each projectile can hit only one target. findHit() marks the
+    projectile it returns as spent, and isSpent() tells which
+    projectiles to remove after all targets have been checked.
+*/
+public class ProjectileGrid {
+
+    // cells are 64x64 pixels (one tile)
+    private static final int CELL_SIZE_BITS = 6;
+    private static final int NUM_BUCKETS = 1024;
+    private static final int BUCKET_MASK = NUM_BUCKETS - 1;
+
+    private float[] x;
+    private float[] y;
+    private int count;
+
+    private int[] bucketStart;
+    private int[] bucketOf;
+    private int[] order;
+    private boolean[] spent;
+    private int numSpent;
+
+    /**
+        Creates a new, empty ProjectileGrid.
+    */
+    public ProjectileGrid() {
+        bucketStart = new int[NUM_BUCKETS + 1];
+        allocate(64);
+    }
+
+
+    private void allocate(int capacity) {
+        bucketOf = new int[capacity];
+        order = new int[capacity];
+        spent = new boolean[capacity];
+    }
+
+
+    /**
+        Bins the first count projectiles of the specified arrays
+        that belong to the specified owner; the others are
+        ignored. Returns the number of projectiles binned. The
+        arrays are used, not copied, until the next call to
+        build().
+    */
+    public int build(float[] x, float[] y, byte[] owner,
+        int ownerFilter, int count)
+    {
+        this.x = x;
+        this.y = y;
+        this.count = count;
+        if (count > order.length) {
+            allocate(Math.max(count, order.length * 2));
+        }
+
+        // count the projectiles in each bucket
+        for (int i=0; i<=NUM_BUCKETS; i++) {
+            bucketStart[i] = 0;
+        }
+        int numBinned = 0;
+        for (int i=0; i<count; i++) {
+            spent[i] = false;
+            if (owner[i] != ownerFilter) {
+                bucketOf[i] = -1;
+                continue;
+            }
+            int bucket = hash(cell(x[i]), cell(y[i]));
+            bucketOf[i] = bucket;
+            bucketStart[bucket + 1]++;
+            numBinned++;
+        }
+        numSpent = 0;
+
+        // turn the counts into offsets
+        for (int i=0; i<NUM_BUCKETS; i++) {
+            bucketStart[i + 1] += bucketStart[i];
+        }
+
+        // write the indices in bucket order, using bucketStart as
+        // the insertion point and shifting it back afterwards
+        for (int i=0; i<count; i++) {
+            if (bucketOf[i] >= 0) {
+                order[bucketStart[bucketOf[i]]++] = i;
+            }
+        }
+        for (int i=NUM_BUCKETS; i>0; i--) {
+            bucketStart[i] = bucketStart[i - 1];
+        }
+        bucketStart[0] = 0;
+        return numBinned;
+    }
+
+
+    /**
+        Finds a projectile that isn't spent and lies strictly
+        inside the specified rectangle (in pixels). The projectile
+        is marked as spent and its index is returned, or -1 if
+        there is none.
+    */
+    public int findHit(float left, float top, int width, int height) {
+        if (bucketStart[NUM_BUCKETS] == numSpent) {
+            return -1;
+        }
+        float right = left + width;
+        float bottom = top + height;
+        int minCx = cell(left);
+        int maxCx = cell(right);
+        int minCy = cell(top);
+        int maxCy = cell(bottom);
+        for (int cx=minCx; cx<=maxCx; cx++) {
+            for (int cy=minCy; cy<=maxCy; cy++) {
+                int bucket = hash(cx, cy);
+                for (int j=bucketStart[bucket]; j<bucketStart[bucket + 1]; j++) {
+                    int i = order[j];
+                    if (!spent[i] &&
+                        x[i] > left && x[i] < right &&
+                        y[i] > top && y[i] < bottom)
+                    {
+                        spent[i] = true;
+                        numSpent++;
+                        return i;
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+        Checks if a projectile was returned by findHit() since
+        the last build().
+    */
+    public boolean isSpent(int i) {
+        return spent[i];
+    }
+
+
+    /**
+        Gets the number of projectiles returned by findHit()
+        since the last build().
+    */
+    public int getSpentCount() {
+        return numSpent;
+    }
+
+
+    private static int cell(float pixels) {
+        return ((int)Math.floor(pixels)) >> CELL_SIZE_BITS;
+    }
+
+
+    private static int hash(int cx, int cy) {
+        return ((cx * 73856093) ^ (cy * 19349663)) & BUCKET_MASK;
+    }
+}
@@ -2,53 +2,347 @@ package com.brackeen.javagamebook.tilegame;
 
 import java.awt.*;
 import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
 import java.io.*;
 import java.util.ArrayList;
-import javax.swing.ImageIcon;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import javax.imageio.ImageIO;
 
 import com.brackeen.javagamebook.graphics.*;
 import com.brackeen.javagamebook.tilegame.sprites.*;
+import com.brackeen.javagamebook.util.ThreadPool;
+import com.brackeen.javagamebook.util.TimeFormat;
 
 
 /**
     The ResourceManager class loads and manages tile Images and
-    "host" Sprites used in the game. Game Sprites are cloned from
-    "host" Sprites.
+    the SpriteFactories used in the game. Game Sprites are built
+    by the factories registered for each map character.
 */
 public class ResourceManager {
 
-    private ArrayList tiles;
+    private static final String DEFAULT_IMAGE_CACHE = "cache";
+
+    // how long the loader thread waits before preloading the
+    // next map, so it doesn't take the CPU from the first frames
+    // of the new level
+    private static final long PRELOAD_DELAY = 50;
+
+    // a grub is an enemy with the grub AI
+    private static final Archetype GRUB = new Archetype(
+        new int[] { EntityWorld.ENEMY, EntityWorld.AI },
+        new int[] { EntityWorld.ENEMY_SCORE, EntityWorld.AI_GRUB });
+
+    private TilePalette tiles;
+    private int explodedTile;
     private int currentMap;
     private GraphicsConfiguration gc;
-
-    // host sprites used for cloning
-    private Sprite playerSprite;
-    private Sprite musicSprite;
-    private Sprite coinSprite;
-    private Sprite goalSprite;
-    private Sprite grubSprite;
-    private Sprite mushSprite;
-    private Sprite explodeSprite;
-    private Sprite gasSprite;
+    private HashMap templates;
+    private ArrayList retiredTemplates;
+
+    // decoded images, and how long each took to load
+    private ThreadPool assetPool;
+    private HashMap imageTasks;
+    private ArrayList derivedImageTasks;
+    private ImageCache imageCache;
+    private TextureAtlas atlas;
+    private ArrayList loadTimes;
+    private long totalLoadTime;
+
+    // loads the next map in the background
+    private ThreadPool loaderPool;
+    private boolean preloadEnabled = true;
+    private FutureTask preloadedMap;
+    private int preloadedMapNumber;
+
+    // factories that build the game sprites
+    private SpriteFactory playerFactory;
+    private SpawnRegistry spawnRegistry;
+    private AnimationClock animationClock;
 
     /**
         Creates a new ResourceManager with the specified
-        GraphicsConfiguration.
+        GraphicsConfiguration. If gc is null (for example, when
+        running headless), plain BufferedImages are used instead
+        of images compatible with the display.
     */
     public ResourceManager(GraphicsConfiguration gc) {
         this.gc = gc;
-        loadTileImages();
-        loadCreatureSprites();
-        loadPowerUpSprites();
+        templates = new HashMap();
+        retiredTemplates = new ArrayList();
+        spawnRegistry = new SpawnRegistry();
+        // -Dgame.animationClock=false animates every grub and
+        // power up on its own
+        if (!"false".equals(System.getProperty("game.animationClock"))) {
+            animationClock = new AnimationClock();
+        }
+        imageTasks = new HashMap();
+        derivedImageTasks = new ArrayList();
+        // -Dgame.imageCache=dir sets where derived images are
+        // kept; an empty name turns the cache off
+        String cacheDir = System.getProperty("game.imageCache",
+            DEFAULT_IMAGE_CACHE);
+        if (cacheDir.length() > 0) {
+            imageCache = new ImageCache(new File(cacheDir));
+        }
+        loadTimes = new ArrayList();
+
+        // decode every image at once on the asset loader threads,
+        // while the sprites are put together from the images as
+        // they're ready
+        long startTime = System.nanoTime();
+        assetPool = new ThreadPool(
+            Runtime.getRuntime().availableProcessors());
+        try {
+            requestAllImages();
+            loadTileImages();
+            loadCreatureSprites();
+            loadPowerUpSprites();
+        }
+        finally {
+            assetPool.close();
+            assetPool = null;
+        }
+        createTextureAtlas();
+        totalLoadTime = System.nanoTime() - startTime;
+    }
+
+
+    /**
+        Packs every tile image and Sprite frame, including the
+        mirrored and flipped ones, into a TextureAtlas.
+    */
+    private void createTextureAtlas() {
+        long startTime = System.nanoTime();
+        atlas = new TextureAtlas();
+        for (int i=1; i<tiles.size(); i++) {
+            atlas.add(tiles.getImage(i));
+        }
+        ArrayList tasks = new ArrayList(imageTasks.values());
+        tasks.addAll(derivedImageTasks);
+        for (int i=0; i<tasks.size(); i++) {
+            Image image = getImage((FutureTask)tasks.get(i));
+            if (image != null) {
+                atlas.add(image);
+            }
+        }
+        atlas.pack(gc);
+        addLoadTime("texture atlas (" + atlas.getImageCount() +
+            " images, " + atlas.getPageCount() + " pages)", startTime);
     }
 
 
     /**
-        Gets an image from the images/ directory.
+        Gets the TextureAtlas holding the tile images and Sprite
+        frames.
+    */
+    public TextureAtlas getTextureAtlas() {
+        return atlas;
+    }
+
+
+    /**
+        Gets an image from the images/ directory. Each image is
+        decoded once; asking for it again returns the same Image.
     */
     public Image loadImage(String name) {
-        String filename = "images/" + name;
-        return new ImageIcon(filename).getImage();
+        return getImage(requestImage(name));
+    }
+
+
+    /**
+        Starts decoding every PNG image in the images/ directory.
+    */
+    private void requestAllImages() {
+        String[] names = new File("images").list();
+        if (names == null) {
+            return;
+        }
+        Arrays.sort(names);
+        for (int i=0; i<names.length; i++) {
+            if (names[i].endsWith(".png")) {
+                requestImage(names[i]);
+            }
+        }
+    }
+
+
+    /**
+        Starts decoding an image from the images/ directory, if
+        it hasn't been started already. The image is decoded on
+        the asset loader threads while the ResourceManager is
+        being created, and on the calling thread after that.
+    */
+    private synchronized FutureTask requestImage(final String name) {
+        FutureTask task = (FutureTask)imageTasks.get(name);
+        if (task == null) {
+            task = new FutureTask(new Callable() {
+                public Object call() throws IOException {
+                    long startTime = System.nanoTime();
+                    Image image = decodeImage("images/" + name);
+                    addLoadTime(name, startTime);
+                    return image;
+                }
+            });
+            imageTasks.put(name, task);
+            runAssetTask(task);
+        }
+        return task;
+    }
+
+
+    /**
+        Starts creating a scaled copy of an image from the
+        images/ directory once the image is ready (see
+        getScaledImage()). The copy is kept in the image cache
+        under a hash of the image file and the name of the
+        variant, and read from there on later runs.
+    */
+    private FutureTask requestScaledImage(final FutureTask source,
+        final float x, final float y, final String sourceName,
+        final String variant)
+    {
+        FutureTask task = new FutureTask(new Callable() {
+            public Object call() throws Exception {
+                String name = sourceName + " (" + variant + ")";
+                long startTime = System.nanoTime();
+                String key = null;
+                if (imageCache != null) {
+                    key = ImageCache.hashFile(
+                        new File("images/" + sourceName)) + "-" +
+                        variant;
+                    BufferedImage cached = imageCache.get(key);
+                    if (cached != null) {
+                        Image image = toCompatibleImage(cached,
+                            Transparency.BITMASK);
+                        addLoadTime(name + " cached", startTime);
+                        return image;
+                    }
+                }
+
+                Image image = (Image)source.get();
+                startTime = System.nanoTime();
+                Image scaledImage = getScaledImage(image, x, y);
+                if (key != null && scaledImage instanceof BufferedImage) {
+                    imageCache.put(key, (BufferedImage)scaledImage);
+                }
+                addLoadTime(name, startTime);
+                return scaledImage;
+            }
+        });
+        derivedImageTasks.add(task);
+        runAssetTask(task);
+        return task;
+    }
+
+
+    private void runAssetTask(FutureTask task) {
+        if (assetPool != null) {
+            assetPool.runTask(task);
+        }
+        else {
+            task.run();
+        }
+    }
+
+
+    /**
+        Waits for an image task to finish and gets the image.
+        Returns null if the image couldn't be loaded.
+    */
+    private Image getImage(FutureTask task) {
+        try {
+            return (Image)task.get();
+        }
+        catch (ExecutionException ex) {
+            ex.getCause().printStackTrace();
+        }
+        catch (InterruptedException ex) { }
+        return null;
+    }
+
+
+    /**
+        Decodes an image file into an image compatible with the
+        display, so it can be drawn quickly.
+    */
+    private Image decodeImage(String filename) throws IOException {
+        BufferedImage source = ImageIO.read(new File(filename));
+        if (source == null) {
+            throw new IOException("Can't decode " + filename);
+        }
+        return toCompatibleImage(source, source.getTransparency());
+    }
+
+
+    /**
+        Copies an image into an image compatible with the
+        display. Returns the image itself if there is no display.
+    */
+    private Image toCompatibleImage(BufferedImage source,
+        int transparency)
+    {
+        if (gc == null) {
+            // nothing to be compatible with
+            return source;
+        }
+        Image image = createImage(source.getWidth(),
+            source.getHeight(), transparency);
+        Graphics2D g = (Graphics2D)image.getGraphics();
+        g.setComposite(AlphaComposite.Src);
+        g.drawImage(source, 0, 0, null);
+        g.dispose();
+        return image;
+    }
+
+
+    private synchronized void addLoadTime(String name,
+        long startTime)
+    {
+        loadTimes.add(new LoadTime(name,
+            System.nanoTime() - startTime));
+    }
+
+
+    /**
+        Prints how long each image took to decode or create,
+        slowest first, and how long creating the ResourceManager
+        took in total.
+    */
+    public synchronized void printLoadTimes(PrintStream out) {
+        LoadTime[] times = (LoadTime[])loadTimes.toArray(
+            new LoadTime[loadTimes.size()]);
+        Arrays.sort(times, new Comparator() {
+            public int compare(Object a, Object b) {
+                long t1 = ((LoadTime)a).nanos;
+                long t2 = ((LoadTime)b).nanos;
+                return (t1 < t2) ? 1 : ((t1 > t2) ? -1 : 0);
+            }
+        });
+        long sum = 0;
+        for (int i=0; i<times.length; i++) {
+            out.println(formatMillis(times[i].nanos) + "  " +
+                times[i].name);
+            sum += times[i].nanos;
+        }
+        out.println(formatMillis(sum) + "  all images (" +
+            times.length + ")");
+        out.println(formatMillis(totalLoadTime) +
+            "  ResourceManager total, " +
+            Runtime.getRuntime().availableProcessors() +
+            " loader threads");
+    }
+
+
+    private static String formatMillis(long nanos) {
+        return TimeFormat.padLeft(
+            TimeFormat.formatMillis(nanos) + " ms", 10);
     }
 
 
@@ -72,7 +366,7 @@ public class ResourceManager {
             (y-1) * image.getHeight(null) / 2);
 
         // create a transparent (not translucent) image
-        Image newImage = gc.createCompatibleImage(
+        Image newImage = createImage(
             image.getWidth(null),
             image.getHeight(null),
             Transparency.BITMASK);
@@ -86,13 +380,33 @@ public class ResourceManager {
     }
 
 
+    /**
+        Creates an image compatible with the display, or an ARGB
+        BufferedImage if there is no display.
+    */
+    private Image createImage(int width, int height,
+        int transparency)
+    {
+        if (gc != null) {
+            return gc.createCompatibleImage(width, height,
+                transparency);
+        }
+        return new BufferedImage(width, height,
+            BufferedImage.TYPE_INT_ARGB);
+    }
+
+
+    /**
+        Loads the next map. If the next map was preloaded, it is
+        returned right away. Either way, loading the map after it
+        starts in the background.
+    */
     public TileMap loadNextMap() {
-        TileMap map = null;
+        TileMap map = getPreloadedMap();
         while (map == null) {
             currentMap++;
             try {
-                //map = loadMap("maps/map" + currentMap + ".txt");
-                map = loadMap("maps/map3.txt");
+                map = loadMap(getMapFile(currentMap));
             }
             catch (IOException ex) {
                 if (currentMap == 1) {
@@ -104,14 +418,16 @@ public class ResourceManager {
             }
         }
 
+        if (preloadEnabled) {
+            preloadNextMap();
+        }
         return map;
     }
 
 
     public TileMap reloadMap() {
         try {
-            //return loadMap("maps/map" + currentMap + ".txt");
-            return loadMap("maps/map3.txt");
+            return loadMap(getMapFile(currentMap));
         }
         catch (IOException ex) {
             ex.printStackTrace();
@@ -120,102 +436,297 @@ public class ResourceManager {
     }
 
 
-    private TileMap loadMap(String filename)
-        throws IOException
-    {
-        ArrayList lines = new ArrayList();
-        int width = 0;
-        int height = 0;
+    private String getMapFile(int number) {
+        //return "maps/map" + number + ".txt";
+        return "maps/map3.txt";
+    }
 
-        // read every line in the text file into the list
-        BufferedReader reader = new BufferedReader(
-            new FileReader(filename));
-        while (true) {
-            String line = reader.readLine();
-            // no more lines to read
-            if (line == null) {
-                reader.close();
-                break;
-            }
 
-            // add every line except for comments
-            if (!line.startsWith("#")) {
-                lines.add(line);
-                width = Math.max(width, line.length());
-            }
-        }
+    /**
+        Sets whether loadNextMap() loads the map after the one it
+        returns on a background thread, so the next level is ready
+        when the player reaches the goal. On by default.
+    */
+    public void setPreloadEnabled(boolean preloadEnabled) {
+        this.preloadEnabled = preloadEnabled;
+    }
 
-        // parse the lines to create a TileEngine
-        height = lines.size();
-        TileMap newMap = new TileMap(width, height);
-        for (int y=0; y<height; y++) {
-            String line = (String)lines.get(y);
-            for (int x=0; x<line.length(); x++) {
-                char ch = line.charAt(x);
 
-                // check if the char represents tile A, B, C etc.
-                int tile = ch - 'A';
-                if (tile >= 0 && tile < tiles.size()) {
-                    newMap.setTile(x, y, (Image)tiles.get(tile));
+    /**
+        Starts loading the map after the current one on the
+        loader thread. The loader thread waits PRELOAD_DELAY
+        before it starts, since the frame that switches levels is
+        the one that can least afford to share the CPU (on a
+        single core, the loader would otherwise run right away and
+        make the switch slower than not preloading at all).
+    */
+    private synchronized void preloadNextMap() {
+        if (loaderPool == null) {
+            loaderPool = new ThreadPool(1);
+        }
+        final int firstMap = currentMap;
+        preloadedMap = new FutureTask(new Callable() {
+            public Object call() throws IOException {
+                try {
+                    Thread.sleep(PRELOAD_DELAY);
                 }
-
-                // check if the char represents a sprite
-                else if (ch == 'o') {
-                    addSprite(newMap, coinSprite, x, y);
+                catch (InterruptedException ex) {
+                    // closed
+                    return null;
                 }
-                else if (ch == '!') {
-                    addSprite(newMap, musicSprite, x, y);
+                preloadedMapNumber = firstMap + 1;
+                try {
+                    return loadMap(getMapFile(preloadedMapNumber));
                 }
-		else if (ch == 'm'){
-		    addSprite(newMap, mushSprite, x, y);
-		}
-                else if (ch == '*') {
-                    addSprite(newMap, goalSprite, x, y);
+                catch (IOException ex) {
+                    if (preloadedMapNumber == 1) {
+                        throw ex;
+                    }
+                    // start over at the first map
+                    preloadedMapNumber = 1;
+                    return loadMap(getMapFile(preloadedMapNumber));
                 }
-                else if (ch == '1') {
-                    addSprite(newMap, grubSprite, x, y);
+            }
+        });
+        loaderPool.runTask(preloadedMap);
+    }
+
+
+    /**
+        Gets the preloaded next map, waiting for it to finish
+        loading if needed. Returns null if no map was preloaded
+        or it couldn't be loaded.
+    */
+    private TileMap getPreloadedMap() {
+        FutureTask task;
+        synchronized (this) {
+            task = preloadedMap;
+            preloadedMap = null;
+        }
+        if (task == null) {
+            return null;
+        }
+        try {
+            TileMap map = (TileMap)task.get();
+            if (map != null) {
+                currentMap = preloadedMapNumber;
+            }
+            return map;
+        }
+        catch (ExecutionException ex) {
+            ex.getCause().printStackTrace();
+        }
+        catch (InterruptedException ex) { }
+        return null;
+    }
+
+
+    /**
+        Stops the loader thread, and closes the map files of
+        templates that have been replaced.
+    */
+    public synchronized void close() {
+        if (loaderPool != null) {
+            loaderPool.close();
+            loaderPool = null;
+        }
+        preloadedMap = null;
+        for (int i=0; i<retiredTemplates.size(); i++) {
+            closeTemplate((MapTemplate)retiredTemplates.get(i));
+        }
+        retiredTemplates.clear();
+    }
+
+
+    /**
+        Tells this ResourceManager that a map is no longer used
+        (for example, when the game switches to another map). If
+        the map's template has been replaced and no other map uses
+        it, its map file is closed.
+    */
+    public synchronized void releaseMap(TileMap map) {
+        TileMap.ChunkLoader loader = map.getChunkLoader();
+        for (int i=0; i<retiredTemplates.size(); i++) {
+            MapTemplate template = (MapTemplate)retiredTemplates.get(i);
+            if (template == loader) {
+                if (template.releaseMap()) {
+                    retiredTemplates.remove(i);
+                    closeTemplate(template);
                 }
-		else if (ch == 'e') {
-		    newMap.setTile(x, y, (Image)tiles.get(9));
-		    addSprite(newMap, explodeSprite, x, y);
-		}
-		else if (ch == 'g') {
-		    addSprite(newMap, gasSprite, x, y);
-		}
+                return;
             }
         }
+        Iterator i = templates.values().iterator();
+        while (i.hasNext()) {
+            MapTemplate template = (MapTemplate)i.next();
+            if (template == loader) {
+                template.releaseMap();
+                return;
+            }
+        }
+    }
+
+
+    private void closeTemplate(MapTemplate template) {
+        try {
+            template.close();
+        }
+        catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+
+    /**
+        Loads a text map file, or its compiled version (see
+        MapCompiler) if there is one that's up to date. The map is
+        streamed: its tiles and Sprites are read from the file
+        chunk by chunk as the player gets close to them. Files are
+        only read the first time a map is loaded; after that, new
+        maps are created from the map's MapTemplate.
+    */
+    public TileMap loadMap(String filename)
+        throws IOException
+    {
+        TileMap newMap = getMapTemplate(filename).createMap(tiles);
 
         // add the player to the map
-        Sprite player = (Sprite)playerSprite.clone();
+        Sprite player = playerFactory.create();
         player.setX(TileMapRenderer.tilesToPixels(3));
         player.setY(0);
 	((Creature)player).setHealth(20);
         newMap.setPlayer(player);
+        newMap.streamAround(3);
 
         return newMap;
     }
 
 
-    private void addSprite(TileMap map,
-        Sprite hostSprite, int tileX, int tileY)
+    /**
+        Gets the MapTemplate of a text map, opening the map file
+        if it hasn't been opened yet or has changed since.
+    */
+    public synchronized MapTemplate getMapTemplate(String filename)
+        throws IOException
     {
-        if (hostSprite != null) {
-            // clone the sprite from the "host"
-            Sprite sprite = (Sprite)hostSprite.clone();
+        File textFile = new File(filename);
+        File mapFile = new File(MapCompiler.getCompiledName(filename));
+        boolean useCompiled = mapFile.exists() &&
+            mapFile.lastModified() >= textFile.lastModified();
+
+        MapTemplate template = (MapTemplate)templates.get(filename);
+        if (template != null &&
+            template.isReadFrom(useCompiled ? mapFile : textFile))
+        {
+            return template;
+        }
+        if (template != null) {
+            // maps created from the old template may still be
+            // loading chunks from it, so it's closed once they're
+            // released
+            if (template.isInUse()) {
+                retiredTemplates.add(template);
+            }
+            else {
+                closeTemplate(template);
+            }
+        }
+
+        template = null;
+        if (useCompiled) {
+            template = openCompiledMap(mapFile);
+        }
+        if (template == null) {
+            TextMapFile file = new TextMapFile(filename);
+            template = new MapTemplate(textFile, file.getWidth(),
+                file.getHeight(), new TextMapReader(file));
+        }
+        templates.put(filename, template);
+        return template;
+    }
 
+
+    /**
+        Opens a compiled map. Returns null if it can't be used
+        (for example, if it was compiled for different tiles).
+    */
+    private MapTemplate openCompiledMap(File mapFile) {
+        try {
+            CompiledMapFile file = new CompiledMapFile(mapFile, tiles);
+            return new MapTemplate(mapFile, file.getWidth(),
+                file.getHeight(), new CompiledMapReader(file));
+        }
+        catch (IOException ex) {
+            System.out.println("Can't use " + mapFile + ": " +
+                ex.getMessage());
+            return null;
+        }
+    }
+
+
+    /**
+        Gets the palette of tiles used by the maps.
+    */
+    public TilePalette getTilePalette() {
+        return tiles;
+    }
+
+
+    /**
+        Gets the id of the tile a map character represents, or
+        TilePalette.EMPTY if it isn't a tile.
+    */
+    int getTileId(int ch) {
+        // check if the char represents tile A, B, C etc.
+        int tile = ch - 'A' + 1;
+        if (tile >= 1 && tile < tiles.size()) {
+            return tile;
+        }
+        else if (ch == 'e') {
+            return explodedTile;
+        }
+        return TilePalette.EMPTY;
+    }
+
+
+    /**
+        Gets the clock that animates the grubs and power ups, or
+        null if each one is animated on its own.
+    */
+    public AnimationClock getAnimationClock() {
+        return animationClock;
+    }
+
+
+    /**
+        Gets the SpawnRegistry that maps map characters to the
+        SpriteFactories of the game's Sprites.
+    */
+    public SpawnRegistry getSpawnRegistry() {
+        return spawnRegistry;
+    }
+
+
+    /**
+        Adds the Sprite a map character represents to a
+        SpriteList, centered in the specified tile and resting on
+        its bottom. Does nothing if the character isn't a Sprite.
+    */
+    private void addSprite(MapTemplate.SpriteList sprites, int ch,
+        int tileX, int tileY)
+    {
+        SpriteFactory factory = spawnRegistry.getFactory(ch);
+        if (factory != null) {
             // center the sprite
-            sprite.setX(
-                TileMapRenderer.tilesToPixels(tileX) +
+            float x = TileMapRenderer.tilesToPixels(tileX) +
                 (TileMapRenderer.tilesToPixels(1) -
-                sprite.getWidth()) / 2);
+                spawnRegistry.getWidth(ch)) / 2;
 
             // bottom-justify the sprite
-            sprite.setY(
-                TileMapRenderer.tilesToPixels(tileY + 1) -
-                sprite.getHeight());
+            float y = TileMapRenderer.tilesToPixels(tileY + 1) -
+                spawnRegistry.getHeight(ch);
 
-            // add it to the map
-            map.addSprite(sprite);
+            sprites.add(factory, spawnRegistry.getArchetype(ch), x, y);
         }
     }
 
@@ -228,7 +739,7 @@ public class ResourceManager {
     public void loadTileImages() {
         // keep looking for tile A,B,C, etc. this makes it
         // easy to drop new tiles in the images/ directory
-        tiles = new ArrayList();
+        tiles = new TilePalette();
         char ch = 'A';
         while (true) {
             String name = "tile_" + ch + ".png";
@@ -236,36 +747,45 @@ public class ResourceManager {
             if (!file.exists()) {
                 break;
             }
-            tiles.add(loadImage(name));
+            tiles.add(name, loadImage(name), true);
             ch++;
         }
-	tiles.add(loadImage("exploded.png"));
+	explodedTile = tiles.add("exploded.png", loadImage("exploded.png"),
+		true);
     }
 
 
     public void loadCreatureSprites() {
 
-        Image[][] images = new Image[4][];
-
-        // load left-facing images
-        images[0] = new Image[] {
-            loadImage("player1.png"),
-            loadImage("player2.png"),
-            loadImage("player3.png"),
-            loadImage("grub1.png"),
-            loadImage("grub2.png"),
+        String[] names = {
+            "player1.png",
+            "player2.png",
+            "player3.png",
+            "grub1.png",
+            "grub2.png",
         };
 
-        images[1] = new Image[images[0].length];
-        images[2] = new Image[images[0].length];
-        images[3] = new Image[images[0].length];
-        for (int i=0; i<images[0].length; i++) {
+        // start creating every variant of every image, then
+        // wait for them
+        FutureTask[][] tasks = new FutureTask[4][names.length];
+        for (int i=0; i<names.length; i++) {
+            // left-facing images
+            tasks[0][i] = requestImage(names[i]);
             // right-facing images
-            images[1][i] = getMirrorImage(images[0][i]);
+            tasks[1][i] = requestScaledImage(tasks[0][i], -1, 1,
+                names[i], "mirrored");
             // left-facing "dead" images
-            images[2][i] = getFlippedImage(images[0][i]);
+            tasks[2][i] = requestScaledImage(tasks[0][i], 1, -1,
+                names[i], "flipped");
             // right-facing "dead" images
-            images[3][i] = getFlippedImage(images[1][i]);
+            tasks[3][i] = requestScaledImage(tasks[1][i], 1, -1,
+                names[i], "mirrored-flipped");
+        }
+        Image[][] images = new Image[4][names.length];
+        for (int i=0; i<4; i++) {
+            for (int j=0; j<names.length; j++) {
+                images[i][j] = getImage(tasks[i][j]);
+            }
         }
 
         // create creature animations
@@ -278,11 +798,28 @@ public class ResourceManager {
                 images[i][3], images[i][4]);
         }
 
-        // create creature sprites
-        playerSprite = new Player(playerAnim[0], playerAnim[1],
-            playerAnim[2], playerAnim[3]);
-        grubSprite = new Grub(grubAnim[0], grubAnim[1],
-            grubAnim[2], grubAnim[3]);
+        // create creature factories
+        final Animation[] player = playerAnim;
+        playerFactory = new SpriteFactory() {
+            public Sprite create() {
+                return new Player((Animation)player[0].clone(),
+                    (Animation)player[1].clone(),
+                    (Animation)player[2].clone(),
+                    (Animation)player[3].clone());
+            }
+        };
+        final Animation[] grub = grubAnim;
+        for (int i=0; i<4; i++) {
+            grub[i].setClock(animationClock);
+        }
+        spawnRegistry.register('1', new SpriteFactory() {
+            public Sprite create() {
+                return new Grub((Animation)grub[0].clone(),
+                    (Animation)grub[1].clone(),
+                    (Animation)grub[2].clone(),
+                    (Animation)grub[3].clone());
+            }
+        }, GRUB, grub[1]);
     }
 
 
@@ -308,45 +845,174 @@ public class ResourceManager {
     }
 
 
+    /**
+        Gets the Archetype of a power up with the specified
+        effect: a pickup that moves by its velocity.
+    */
+    private static Archetype getPickup(int effect) {
+        return new Archetype(
+            new int[] { EntityWorld.PICKUP, EntityWorld.MOTION },
+            new int[] { effect, 0 });
+    }
+
+
     private void loadPowerUpSprites() {
         // create "goal" sprite
-        Animation anim = new Animation();
-        anim.addFrame(loadImage("heart1.png"), 150);
-        anim.addFrame(loadImage("heart2.png"), 150);
-        anim.addFrame(loadImage("heart3.png"), 150);
-        anim.addFrame(loadImage("heart2.png"), 150);
-        goalSprite = new PowerUp.Goal(anim);
+        final Animation goal = new Animation();
+        goal.addFrame(loadImage("heart1.png"), 150);
+        goal.addFrame(loadImage("heart2.png"), 150);
+        goal.addFrame(loadImage("heart3.png"), 150);
+        goal.addFrame(loadImage("heart2.png"), 150);
+        goal.setClock(animationClock);
+        spawnRegistry.register('*', new SpriteFactory() {
+            public Sprite create() {
+                return new PowerUp.Goal((Animation)goal.clone());
+            }
+        }, getPickup(PowerUp.EFFECT_GOAL), goal);
 
         // create "star" sprite
-        anim = new Animation();
-        anim.addFrame(loadImage("star1.png"), 100);
-        anim.addFrame(loadImage("star2.png"), 100);
-        anim.addFrame(loadImage("star3.png"), 100);
-        anim.addFrame(loadImage("star4.png"), 100);
-        coinSprite = new PowerUp.Star(anim);
+        final Animation star = new Animation();
+        star.addFrame(loadImage("star1.png"), 100);
+        star.addFrame(loadImage("star2.png"), 100);
+        star.addFrame(loadImage("star3.png"), 100);
+        star.addFrame(loadImage("star4.png"), 100);
+        star.setClock(animationClock);
+        spawnRegistry.register('o', new SpriteFactory() {
+            public Sprite create() {
+                return new PowerUp.Star((Animation)star.clone());
+            }
+        }, getPickup(PowerUp.EFFECT_STAR), star);
 
         // create "music" sprite
-        anim = new Animation();
-        anim.addFrame(loadImage("music1.png"), 150);
-        anim.addFrame(loadImage("music2.png"), 150);
-        anim.addFrame(loadImage("music3.png"), 150);
-        anim.addFrame(loadImage("music2.png"), 150);
-        musicSprite = new PowerUp.Music(anim);
+        final Animation music = new Animation();
+        music.addFrame(loadImage("music1.png"), 150);
+        music.addFrame(loadImage("music2.png"), 150);
+        music.addFrame(loadImage("music3.png"), 150);
+        music.addFrame(loadImage("music2.png"), 150);
+        music.setClock(animationClock);
+        spawnRegistry.register('!', new SpriteFactory() {
+            public Sprite create() {
+                return new PowerUp.Music((Animation)music.clone());
+            }
+        }, getPickup(PowerUp.EFFECT_MUSIC), music);
 
 	// create "mushroom" sprite
-	anim = new Animation();
-	anim.addFrame(loadImage("mushroom.png"), 100);
-	mushSprite = new PowerUp.Mushroom(anim);
+	final Animation mushroom = new Animation();
+	mushroom.addFrame(loadImage("mushroom.png"), 100);
+	spawnRegistry.register('m', new SpriteFactory() {
+	    public Sprite create() {
+		return new PowerUp.Mushroom((Animation)mushroom.clone());
+	    }
+	}, getPickup(PowerUp.EFFECT_MUSHROOM), mushroom);
 
 	// create "explode" sprite
-	anim = new Animation();
-	anim.addFrame(loadImage("explode.png"), 100);
-	explodeSprite = new PowerUp.Explode(anim);
+	final Animation explode = new Animation();
+	explode.addFrame(loadImage("explode.png"), 100);
+	spawnRegistry.register('e', new SpriteFactory() {
+	    public Sprite create() {
+		return new PowerUp.Explode((Animation)explode.clone());
+	    }
+	}, getPickup(PowerUp.EFFECT_EXPLODE), explode);
 	
 	// create "gas" sprite
-	anim = new Animation();
-	anim.addFrame(loadImage("gas.png"), 100);
-	gasSprite = new PowerUp.Gas(anim);
+	final Animation gas = new Animation();
+	gas.addFrame(loadImage("gas.png"), 100);
+	spawnRegistry.register('g', new SpriteFactory() {
+	    public Sprite create() {
+		return new PowerUp.Gas((Animation)gas.clone());
+	    }
+	}, getPickup(PowerUp.EFFECT_GAS), gas);
     }
 
+
+
+    /**
+        Reads the chunks of a TextMapFile, turning each character
+        into a tile id or a Sprite.
+    */
+    private class TextMapReader implements MapTemplate.Reader {
+
+        private TextMapFile file;
+        private byte[] glyphs;
+
+        public TextMapReader(TextMapFile file) {
+            this.file = file;
+            glyphs = new byte[TileMap.CHUNK_WIDTH];
+        }
+
+        public void readTiles(int chunk, short[] chunkTiles)
+            throws IOException
+        {
+            int firstX = chunk * TileMap.CHUNK_WIDTH;
+            for (int y=0; y<file.getHeight(); y++) {
+                file.readRow(y, firstX, glyphs, glyphs.length);
+                int row = y * TileMap.CHUNK_WIDTH;
+                for (int x=0; x<glyphs.length; x++) {
+                    chunkTiles[row + x] = (short)getTileId(glyphs[x]);
+                }
+            }
+        }
+
+        public void readSprites(int chunk,
+            MapTemplate.SpriteList sprites) throws IOException
+        {
+            int firstX = chunk * TileMap.CHUNK_WIDTH;
+            for (int y=0; y<file.getHeight(); y++) {
+                file.readRow(y, firstX, glyphs, glyphs.length);
+                for (int x=0; x<glyphs.length; x++) {
+                    addSprite(sprites, glyphs[x], firstX + x, y);
+                }
+            }
+        }
+
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+
+    /**
+        Reads the chunks of a CompiledMapFile.
+    */
+    private class CompiledMapReader implements MapTemplate.Reader {
+
+        private CompiledMapFile file;
+
+        public CompiledMapReader(CompiledMapFile file) {
+            this.file = file;
+        }
+
+        public void readTiles(int chunk, short[] chunkTiles) {
+            file.readChunk(chunk, chunkTiles);
+        }
+
+        public void readSprites(int chunk,
+            MapTemplate.SpriteList sprites)
+        {
+            int last = file.getFirstSprite(chunk + 1);
+            for (int i=file.getFirstSprite(chunk); i<last; i++) {
+                addSprite(sprites, file.getSpriteChar(i),
+                    file.getSpriteX(i), file.getSpriteY(i));
+            }
+        }
+
+        public void close() {
+            // the mapping is released when the file is collected
+        }
+    }
+
+
+    /**
+        How long loading one image took.
+    */
+    private static class LoadTime {
+
+        private String name;
+        private long nanos;
+
+        public LoadTime(String name, long nanos) {
+            this.name = name;
+            this.nanos = nanos;
+        }
+    }
 }
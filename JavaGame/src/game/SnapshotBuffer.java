@@ -0,0 +1,65 @@
+package com.brackeen.javagamebook.tilegame;
+
+/**
+    The SnapshotBuffer hands WorldSnapshots from the simulation
+    thread to the render thread. The simulation writes into a
+    back buffer and publishes it; the renderer always draws the
+    most recently published snapshot. A third, spare snapshot
+    sits between the two, so neither thread ever waits for the
+    other to finish with a buffer: swapping is just an exchange
+    of references.
+*/
+public class SnapshotBuffer {
+
+    private WorldSnapshot back;
+    private WorldSnapshot spare;
+    private WorldSnapshot front;
+    private boolean spareIsNew;
+
+    /**
+        Creates a new SnapshotBuffer.
+    */
+    public SnapshotBuffer() {
+        back = new WorldSnapshot();
+        spare = new WorldSnapshot();
+        front = new WorldSnapshot();
+    }
+
+
+    /**
+        Gets the snapshot the simulation thread should write
+        into. Only the simulation thread may call this.
+    */
+    public WorldSnapshot getBackBuffer() {
+        return back;
+    }
+
+
+    /**
+        Publishes the back buffer, making it the latest snapshot.
+        Only the simulation thread may call this.
+    */
+    public synchronized void publish() {
+        WorldSnapshot temp = spare;
+        spare = back;
+        back = temp;
+        spareIsNew = true;
+    }
+
+
+    /**
+        Gets the most recently published snapshot, or null if
+        nothing has been published yet. The snapshot stays valid
+        until the next call to getLatest(). Only the render thread
+        may call this.
+    */
+    public synchronized WorldSnapshot getLatest() {
+        if (spareIsNew) {
+            WorldSnapshot temp = front;
+            front = spare;
+            spare = temp;
+            spareIsNew = false;
+        }
+        return front.isCaptured() ? front : null;
+    }
+}
@@ -0,0 +1,319 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import com.brackeen.javagamebook.graphics.Sprite;
+
+/**
+    The SpatialHash is a broadphase index of Sprites on a uniform
+    grid. The grid is unbounded: each cell hashes into one of a
+    fixed number of buckets, and each bucket lists the Sprites
+    overlapping the cells that hash to it. A query only looks at
+    the buckets of the cells an area covers, so its cost depends
+    on how crowded that area is, not on the number of Sprites.
+    <p>
+    The index remembers which cells each Sprite covers. Call
+    update() for each Sprite that moved or changed size; only
+    Sprites that now cover different cells are re-bucketed.
+*/
+public class SpatialHash {
+
+    // cells are 128x128 pixels (two tiles)
+    public static final int DEFAULT_CELL_SIZE_BITS = 7;
+    public static final int DEFAULT_NUM_BUCKETS = 4096;
+
+    private static final int INITIAL_BUCKET_SIZE = 4;
+
+    private int cellSizeBits;
+    private int bucketMask;
+    private Entry[][] buckets;
+    private int[] bucketSizes;
+
+    private Entry[] entries;
+    private int numEntries;
+    private IdentityHashMap<Sprite, Entry> entryMap;
+
+    private int[] newCells;
+    private int queryStamp;
+    private Sprite[] results;
+    private int numResults;
+
+    /**
+        Creates a new SpatialHash with the default cell size and
+        number of buckets.
+    */
+    public SpatialHash() {
+        this(DEFAULT_CELL_SIZE_BITS, DEFAULT_NUM_BUCKETS);
+    }
+
+
+    /**
+        Creates a new SpatialHash with cells of 2^cellSizeBits
+        pixels. The number of buckets is rounded up to a power of
+        two.
+    */
+    public SpatialHash(int cellSizeBits, int numBuckets) {
+        this.cellSizeBits = cellSizeBits;
+        int size = Integer.highestOneBit(Math.max(1, numBuckets - 1)) << 1;
+        bucketMask = size - 1;
+        buckets = new Entry[size][];
+        bucketSizes = new int[size];
+        entries = new Entry[16];
+        entryMap = new IdentityHashMap<Sprite, Entry>();
+        results = new Sprite[16];
+        newCells = new int[4];
+    }
+
+
+    /**
+        Gets the number of Sprites in this index.
+    */
+    public int size() {
+        return numEntries;
+    }
+
+
+    /**
+        Adds a Sprite at its current position.
+    */
+    public void add(Sprite sprite) {
+        if (entryMap.containsKey(sprite)) {
+            return;
+        }
+        Entry entry = new Entry(sprite);
+        if (numEntries == entries.length) {
+            Entry[] newEntries = new Entry[numEntries * 2];
+            System.arraycopy(entries, 0, newEntries, 0, numEntries);
+            entries = newEntries;
+        }
+        entry.index = numEntries;
+        entries[numEntries++] = entry;
+        entryMap.put(sprite, entry);
+
+        entry.x = sprite.getX();
+        entry.y = sprite.getY();
+        entry.width = sprite.getWidth();
+        entry.height = sprite.getHeight();
+        computeCells(sprite, entry.cells);
+        insert(entry);
+    }
+
+
+    /**
+        Removes a Sprite.
+    */
+    public void remove(Sprite sprite) {
+        Entry entry = entryMap.remove(sprite);
+        if (entry == null) {
+            return;
+        }
+        erase(entry);
+
+        // swap the last entry into the removed slot
+        numEntries--;
+        Entry last = entries[numEntries];
+        entries[entry.index] = last;
+        last.index = entry.index;
+        entries[numEntries] = null;
+    }
+
+
+    /**
+        Removes every Sprite.
+    */
+    public void clear() {
+        for (int i=0; i<buckets.length; i++) {
+            if (bucketSizes[i] > 0) {
+                Arrays.fill(buckets[i], 0, bucketSizes[i], null);
+                bucketSizes[i] = 0;
+            }
+        }
+        Arrays.fill(entries, 0, numEntries, null);
+        numEntries = 0;
+        entryMap.clear();
+    }
+
+
+    /**
+        Moves a Sprite into the buckets of its new cells, if it
+        has moved or changed size so that it covers different
+        cells.
+    */
+    public void update(Sprite sprite) {
+        Entry entry = entryMap.get(sprite);
+        if (entry != null) {
+            update(entry);
+        }
+    }
+
+
+    private void update(Entry entry) {
+        Sprite sprite = entry.sprite;
+        if (sprite.getX() == entry.x && sprite.getY() == entry.y &&
+            sprite.getWidth() == entry.width &&
+            sprite.getHeight() == entry.height)
+        {
+            // hasn't moved or changed size
+            return;
+        }
+        entry.x = sprite.getX();
+        entry.y = sprite.getY();
+        entry.width = sprite.getWidth();
+        entry.height = sprite.getHeight();
+        computeCells(sprite, newCells);
+        int[] cells = entry.cells;
+        if (newCells[0] != cells[0] || newCells[1] != cells[1] ||
+            newCells[2] != cells[2] || newCells[3] != cells[3])
+        {
+            erase(entry);
+            System.arraycopy(newCells, 0, cells, 0, 4);
+            insert(entry);
+        }
+    }
+
+
+    /**
+        Finds the Sprites whose bounds overlap the specified
+        rectangle (in pixels). Returns the number found; get them
+        with getResult(). Results are valid until the next query.
+    */
+    public int query(int x, int y, int width, int height) {
+        numResults = 0;
+        queryStamp++;
+        int minCx = x >> cellSizeBits;
+        int minCy = y >> cellSizeBits;
+        int maxCx = (x + width - 1) >> cellSizeBits;
+        int maxCy = (y + height - 1) >> cellSizeBits;
+        for (int cx=minCx; cx<=maxCx; cx++) {
+            for (int cy=minCy; cy<=maxCy; cy++) {
+                int bucket = hash(cx, cy);
+                Entry[] items = buckets[bucket];
+                int size = bucketSizes[bucket];
+                for (int i=0; i<size; i++) {
+                    Entry entry = items[i];
+                    if (entry.stamp != queryStamp) {
+                        entry.stamp = queryStamp;
+                        if (overlaps(entry.sprite, x, y, width, height)) {
+                            addResult(entry.sprite);
+                        }
+                    }
+                }
+            }
+        }
+        return numResults;
+    }
+
+
+    /**
+        Gets the i-th Sprite found by the last query.
+    */
+    public Sprite getResult(int i) {
+        return results[i];
+    }
+
+
+    private void addResult(Sprite sprite) {
+        if (numResults == results.length) {
+            Sprite[] newResults = new Sprite[numResults * 2];
+            System.arraycopy(results, 0, newResults, 0, numResults);
+            results = newResults;
+        }
+        results[numResults++] = sprite;
+    }
+
+
+    private static boolean overlaps(Sprite sprite, int x, int y,
+        int width, int height)
+    {
+        int sx = Math.round(sprite.getX());
+        int sy = Math.round(sprite.getY());
+        return (sx < x + width && x < sx + sprite.getWidth() &&
+            sy < y + height && y < sy + sprite.getHeight());
+    }
+
+
+    /**
+        Computes the range of cells a Sprite covers: min x, min y,
+        max x and max y.
+    */
+    private void computeCells(Sprite sprite, int[] cells) {
+        int x = Math.round(sprite.getX());
+        int y = Math.round(sprite.getY());
+        cells[0] = x >> cellSizeBits;
+        cells[1] = y >> cellSizeBits;
+        cells[2] = (x + Math.max(1, sprite.getWidth()) - 1) >> cellSizeBits;
+        cells[3] = (y + Math.max(1, sprite.getHeight()) - 1) >> cellSizeBits;
+    }
+
+
+    private int hash(int cx, int cy) {
+        return ((cx * 73856093) ^ (cy * 19349663)) & bucketMask;
+    }
+
+
+    private void insert(Entry entry) {
+        int[] cells = entry.cells;
+        for (int cx=cells[0]; cx<=cells[2]; cx++) {
+            for (int cy=cells[1]; cy<=cells[3]; cy++) {
+                int bucket = hash(cx, cy);
+                Entry[] items = buckets[bucket];
+                int size = bucketSizes[bucket];
+                if (items == null) {
+                    items = new Entry[INITIAL_BUCKET_SIZE];
+                    buckets[bucket] = items;
+                }
+                else if (size == items.length) {
+                    items = new Entry[size * 2];
+                    System.arraycopy(buckets[bucket], 0, items, 0, size);
+                    buckets[bucket] = items;
+                }
+                items[size] = entry;
+                bucketSizes[bucket] = size + 1;
+            }
+        }
+    }
+
+
+    private void erase(Entry entry) {
+        int[] cells = entry.cells;
+        for (int cx=cells[0]; cx<=cells[2]; cx++) {
+            for (int cy=cells[1]; cy<=cells[3]; cy++) {
+                int bucket = hash(cx, cy);
+                Entry[] items = buckets[bucket];
+                int size = bucketSizes[bucket];
+                // remove one reference (two cells can share a bucket)
+                for (int i=0; i<size; i++) {
+                    if (items[i] == entry) {
+                        items[i] = items[size - 1];
+                        items[size - 1] = null;
+                        bucketSizes[bucket] = size - 1;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+        A Sprite in the index, with the bounds and range of cells
+        it was last bucketed at.
+    */
+    private static class Entry {
+
+        Sprite sprite;
+        float x;
+        float y;
+        int width;
+        int height;
+        int[] cells;
+        int index;
+        int stamp;
+
+        public Entry(Sprite sprite) {
+            this.sprite = sprite;
+            this.cells = new int[4];
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.awt.Image;
+
+import com.brackeen.javagamebook.graphics.Animation;
+
+/**
+    The SpawnRegistry maps the characters of a map file to the
+    SpriteFactories that build the Sprites they stand for, and the
+    Archetypes of their entities. The size of each kind of Sprite
+    is kept too, so Sprites can be placed in a map before any of
+    them are created.
+*/
+public class SpawnRegistry {
+
+    private static final int NUM_GLYPHS = 256;
+
+    private SpriteFactory[] factories;
+    private Archetype[] archetypes;
+    private int[] widths;
+    private int[] heights;
+
+    /**
+        Creates a new, empty SpawnRegistry.
+    */
+    public SpawnRegistry() {
+        factories = new SpriteFactory[NUM_GLYPHS];
+        archetypes = new Archetype[NUM_GLYPHS];
+        widths = new int[NUM_GLYPHS];
+        heights = new int[NUM_GLYPHS];
+    }
+
+
+    /**
+        Registers the SpriteFactory of a map character and the
+        Archetype of its entities, replacing any it had. The
+        Sprites are the size of the first frame of the specified
+        Animation, the one they start with.
+    */
+    public void register(char glyph, SpriteFactory factory,
+        Archetype archetype, Animation anim)
+    {
+        Image image = anim.getTimeline().getImage(0);
+        factories[glyph & 0xff] = factory;
+        archetypes[glyph & 0xff] = archetype;
+        widths[glyph & 0xff] = image.getWidth(null);
+        heights[glyph & 0xff] = image.getHeight(null);
+    }
+
+
+    /**
+        Gets the SpriteFactory of a map character, or null if it
+        isn't a Sprite.
+    */
+    public SpriteFactory getFactory(int glyph) {
+        return factories[glyph & 0xff];
+    }
+
+
+    /**
+        Gets the Archetype of the entities of a map character.
+    */
+    public Archetype getArchetype(int glyph) {
+        return archetypes[glyph & 0xff];
+    }
+
+
+    /**
+        Gets the width of the Sprites of a map character.
+    */
+    public int getWidth(int glyph) {
+        return widths[glyph & 0xff];
+    }
+
+
+    /**
+        Gets the height of the Sprites of a map character.
+    */
+    public int getHeight(int glyph) {
+        return heights[glyph & 0xff];
+    }
+}
@@ -0,0 +1,15 @@
+package com.brackeen.javagamebook.tilegame;
+
+import com.brackeen.javagamebook.graphics.Sprite;
+
+/**
+    A SpriteFactory builds new Sprites of one kind, each with its
+    own Animations, by calling the Sprite's constructor directly.
+*/
+public interface SpriteFactory {
+
+    /**
+        Creates a new Sprite at (0, 0), standing still.
+    */
+    public Sprite create();
+}
@@ -0,0 +1,143 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.io.*;
+
+/**
+    The TextMapFile class reads a text map file a piece of a row
+    at a time. Each line of the file is a row of the map, and
+    each character is a tile or a Sprite (see ResourceManager).
+    Lines starting with "#" are comments. Characters are read as
+    single bytes, so map files should only use ASCII.
+    <p>
+    Opening the file only remembers where each row starts, so a
+    map with millions of columns can be read chunk by chunk
+    without holding the whole file in memory.
+*/
+public class TextMapFile {
+
+    private RandomAccessFile file;
+    private long[] rowOffsets;
+    private int[] rowLengths;
+    private int width;
+    private int height;
+
+    /**
+        Opens the specified text map file.
+    */
+    public TextMapFile(String filename) throws IOException {
+        indexRows(filename);
+        file = new RandomAccessFile(filename, "r");
+    }
+
+
+    /**
+        Gets the width of the map (the length of the longest
+        row).
+    */
+    public int getWidth() {
+        return width;
+    }
+
+
+    /**
+        Gets the height of the map (the number of rows).
+    */
+    public int getHeight() {
+        return height;
+    }
+
+
+    /**
+        Reads count characters of a row, starting at column x.
+        Columns past the end of the row are read as spaces.
+    */
+    public synchronized void readRow(int y, int x, byte[] dest,
+        int count) throws IOException
+    {
+        int n = Math.max(0, Math.min(count, rowLengths[y] - x));
+        if (n > 0) {
+            file.seek(rowOffsets[y] + x);
+            file.readFully(dest, 0, n);
+        }
+        for (int i=n; i<count; i++) {
+            dest[i] = ' ';
+        }
+    }
+
+
+    /**
+        Closes the file.
+    */
+    public synchronized void close() throws IOException {
+        file.close();
+    }
+
+
+    /**
+        Finds the offset and length of every row in the file,
+        skipping comments. Lines can end with "\n", "\r\n" or
+        "\r".
+    */
+    private void indexRows(String filename) throws IOException {
+        rowOffsets = new long[16];
+        rowLengths = new int[16];
+        InputStream in = new FileInputStream(filename);
+        try {
+            byte[] buffer = new byte[8192];
+            long offset = 0;
+            long lineStart = 0;
+            int firstChar = -1;
+            boolean afterCR = false;
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                for (int i=0; i<n; i++, offset++) {
+                    byte b = buffer[i];
+                    if (b == '\n' && afterCR) {
+                        // second half of "\r\n"
+                        lineStart = offset + 1;
+                        afterCR = false;
+                    }
+                    else if (b == '\n' || b == '\r') {
+                        addRow(lineStart, offset, firstChar);
+                        lineStart = offset + 1;
+                        firstChar = -1;
+                        afterCR = (b == '\r');
+                    }
+                    else {
+                        if (offset == lineStart) {
+                            firstChar = b;
+                        }
+                        afterCR = false;
+                    }
+                }
+            }
+            // last line with no line ending
+            if (offset > lineStart) {
+                addRow(lineStart, offset, firstChar);
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+
+    private void addRow(long start, long end, int firstChar) {
+        if (firstChar == '#') {
+            return;
+        }
+        if (height == rowOffsets.length) {
+            long[] newOffsets = new long[height * 2];
+            int[] newLengths = new int[height * 2];
+            System.arraycopy(rowOffsets, 0, newOffsets, 0, height);
+            System.arraycopy(rowLengths, 0, newLengths, 0, height);
+            rowOffsets = newOffsets;
+            rowLengths = newLengths;
+        }
+        int length = (int)(end - start);
+        rowOffsets[height] = start;
+        rowLengths[height] = length;
+        width = Math.max(width, length);
+        height++;
+    }
+}
@@ -0,0 +1,41 @@
+package com.brackeen.javagamebook.tilegame;
+
+/**
+    A TileGrid is a grid of tile ids stored in chunks of
+    TileMap.CHUNK_WIDTH columns, like a TileMap. The renderer
+    draws tiles from a TileGrid, so it can draw either a TileMap
+    or the tiles copied into a WorldSnapshot.
+*/
+public interface TileGrid {
+
+    /**
+        Gets the width of this grid (number of tiles across).
+    */
+    public int getWidth();
+
+    /**
+        Gets the height of this grid (number of tiles down).
+    */
+    public int getHeight();
+
+    /**
+        Gets the palette the tile ids refer to.
+    */
+    public TilePalette getPalette();
+
+    /**
+        Gets the id of the tile at the specified location.
+        Returns TilePalette.EMPTY if no tile is at the location or
+        if the location is out of bounds.
+    */
+    public int getTileId(int x, int y);
+
+    /**
+        Gets the tile ids of a chunk, row by row, CHUNK_WIDTH ids
+        per row, or null if the chunk isn't available. The array
+        is never changed: changing a tile replaces the chunk's
+        array with a new one, so a drawing cached from a chunk is
+        up to date as long as the chunk has the same array.
+    */
+    public short[] getChunk(int chunk);
+}
@@ -0,0 +1,285 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.awt.*;
+import java.awt.image.VolatileImage;
+
+import com.brackeen.javagamebook.graphics.AtlasRegion;
+
+/**
+    The TileLayerCache draws the tiles of a TileGrid from
+    off-screen images, each holding a block of BLOCK_WIDTH by
+    BLOCK_HEIGHT tiles. A block is drawn once and then reused
+    every frame until its chunk's array is replaced (see
+    TileGrid.getChunk()) or its image is lost, so a frame
+    only needs a few blits instead of one drawImage per tile.
+    Blocks without any tiles aren't drawn at all.
+    <p>
+    The blocks are kept in a grid one column and one row larger
+    than the most blocks that fit on screen, indexed by block
+    position modulo the grid size. The blocks on screen never
+    share a slot, and when the map scrolls, the slots of the
+    blocks that scrolled off are reused for the blocks coming
+    on screen.
+*/
+public class TileLayerCache {
+
+    public static final int BLOCK_WIDTH = 8;
+    public static final int BLOCK_HEIGHT = 4;
+
+    private Block[] blocks;
+    private int columns;
+    private int rows;
+
+    /**
+        Creates a new, empty TileLayerCache.
+    */
+    public TileLayerCache() {
+        blocks = new Block[0];
+    }
+
+
+    /**
+        Throws away every cached block, so they're redrawn the
+        next time they're needed.
+    */
+    public void invalidate() {
+        for (int i=0; i<blocks.length; i++) {
+            blocks[i].tiles = null;
+        }
+    }
+
+
+    /**
+        Draws the visible tiles of a grid, with the top left of the
+        grid at (offsetX, offsetY). Tiles are drawn from their atlas
+        regions, if regions isn't null. Only the blocks on screen
+        are drawn.
+    */
+    public void draw(Graphics2D g, TileGrid map, AtlasRegion[] regions,
+        int offsetX, int offsetY, int screenWidth, int screenHeight)
+    {
+        int firstBlockX = Math.max(0,
+            TileMapRenderer.pixelsToTiles(-offsetX) / BLOCK_WIDTH);
+        int lastBlockX = Math.min(
+            (map.getWidth() - 1) / BLOCK_WIDTH,
+            TileMapRenderer.pixelsToTiles(screenWidth - offsetX - 1) /
+            BLOCK_WIDTH);
+        int firstBlockY = Math.max(0,
+            TileMapRenderer.pixelsToTiles(-offsetY) / BLOCK_HEIGHT);
+        int lastBlockY = Math.min(
+            (map.getHeight() - 1) / BLOCK_HEIGHT,
+            TileMapRenderer.pixelsToTiles(screenHeight - offsetY - 1) /
+            BLOCK_HEIGHT);
+        setScreenSize(screenWidth, screenHeight);
+
+        GraphicsConfiguration gc = g.getDeviceConfiguration();
+        for (int by=firstBlockY; by<=lastBlockY; by++) {
+            int y = TileMapRenderer.tilesToPixels(by * BLOCK_HEIGHT) +
+                offsetY;
+            for (int bx=firstBlockX; bx<=lastBlockX; bx++) {
+                int x = TileMapRenderer.tilesToPixels(bx * BLOCK_WIDTH) +
+                    offsetX;
+                Block block = getBlock(bx, by);
+                if (!block.draw(g, gc, map, regions, x, y)) {
+                    // no off-screen image; draw the tiles directly
+                    drawTiles(g, map, regions, bx * BLOCK_WIDTH,
+                        by * BLOCK_HEIGHT, BLOCK_WIDTH, BLOCK_HEIGHT,
+                        x, y);
+                }
+            }
+        }
+    }
+
+
+    /**
+        Draws the tiles in the specified rectangle of tiles, with
+        the top left tile at (x, y). Tiles are drawn from their
+        atlas regions, if regions isn't null.
+    */
+    public static void drawTiles(Graphics g, TileGrid map,
+        AtlasRegion[] regions, int firstX, int firstY, int width,
+        int height, int x, int y)
+    {
+        TilePalette palette = map.getPalette();
+        for (int tileY=0; tileY<height; tileY++) {
+            int dy = y + TileMapRenderer.tilesToPixels(tileY);
+            for (int tileX=0; tileX<width; tileX++) {
+                int id = map.getTileId(firstX + tileX, firstY + tileY);
+                if (id == TilePalette.EMPTY) {
+                    continue;
+                }
+                int dx = x + TileMapRenderer.tilesToPixels(tileX);
+                if (regions != null && regions[id] != null) {
+                    regions[id].draw(g, dx, dy);
+                }
+                else {
+                    Image image = palette.getImage(id);
+                    if (image != null) {
+                        g.drawImage(image, dx, dy, null);
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+        Sizes the grid of blocks for a screen of the specified
+        size. A screen n pixels wide touches at most
+        (n - 1) / blockWidth + 2 columns of blocks; one more is
+        kept for the blocks scrolling on screen. The blocks are
+        only replaced if the grid changes size.
+    */
+    private void setScreenSize(int screenWidth, int screenHeight) {
+        int newColumns = (screenWidth - 1) /
+            TileMapRenderer.tilesToPixels(BLOCK_WIDTH) + 3;
+        int newRows = (screenHeight - 1) /
+            TileMapRenderer.tilesToPixels(BLOCK_HEIGHT) + 3;
+        if (newColumns == columns && newRows == rows) {
+            return;
+        }
+        for (int i=0; i<blocks.length; i++) {
+            blocks[i].flush();
+        }
+        columns = newColumns;
+        rows = newRows;
+        blocks = new Block[columns * rows];
+        for (int i=0; i<blocks.length; i++) {
+            blocks[i] = new Block();
+        }
+    }
+
+
+    /**
+        Gets the cached block at a position, or reuses the block
+        in its slot of the grid for it.
+    */
+    private Block getBlock(int bx, int by) {
+        Block block = blocks[(bx % columns) * rows + (by % rows)];
+        if (block.bx != bx || block.by != by) {
+            block.bx = bx;
+            block.by = by;
+            block.tiles = null;
+        }
+        return block;
+    }
+
+
+    /**
+        A block of tiles, drawn into an off-screen image.
+    */
+    private static class Block {
+
+        private int bx;
+        private int by;
+        private short[] tiles;
+        private TilePalette palette;
+        private boolean dirty;
+        private boolean empty;
+        private VolatileImage image;
+
+        /**
+            Releases this block's off-screen image.
+        */
+        public void flush() {
+            if (image != null) {
+                image.flush();
+                image = null;
+            }
+            tiles = null;
+            palette = null;
+        }
+
+        /**
+            Draws this block, redrawing its image first if needed.
+            Returns false if there's no off-screen image to draw.
+        */
+        public boolean draw(Graphics2D g, GraphicsConfiguration gc,
+            TileGrid map, AtlasRegion[] regions, int x, int y)
+        {
+            short[] tiles = map.getChunk(
+                (bx * BLOCK_WIDTH) >> TileMap.CHUNK_BITS);
+            if (tiles == null) {
+                // nothing to draw
+                return true;
+            }
+            TilePalette palette = map.getPalette();
+            if (tiles != this.tiles || palette != this.palette) {
+                this.tiles = tiles;
+                this.palette = palette;
+                dirty = true;
+            }
+            if (dirty) {
+                empty = isEmpty(map);
+            }
+            if (empty) {
+                dirty = false;
+                return true;
+            }
+
+            int status = VolatileImage.IMAGE_INCOMPATIBLE;
+            if (image != null) {
+                status = image.validate(gc);
+            }
+            if (status == VolatileImage.IMAGE_RESTORED) {
+                // the contents were lost
+                dirty = true;
+            }
+            else if (status == VolatileImage.IMAGE_INCOMPATIBLE) {
+                if (image != null) {
+                    image.flush();
+                }
+                image = gc.createCompatibleVolatileImage(
+                    TileMapRenderer.tilesToPixels(BLOCK_WIDTH),
+                    TileMapRenderer.tilesToPixels(BLOCK_HEIGHT),
+                    Transparency.TRANSLUCENT);
+                if (image == null) {
+                    return false;
+                }
+                image.validate(gc);
+                dirty = true;
+            }
+
+            // the contents can be lost at any time, so try again
+            // a few times if it happens while drawing
+            for (int i=0; i<3; i++) {
+                if (dirty) {
+                    render(map, regions);
+                    dirty = false;
+                }
+                g.drawImage(image, x, y, null);
+                if (!image.contentsLost()) {
+                    return true;
+                }
+                dirty = true;
+                image.validate(gc);
+            }
+            return true;
+        }
+
+
+        private boolean isEmpty(TileGrid map) {
+            for (int y=0; y<BLOCK_HEIGHT; y++) {
+                for (int x=0; x<BLOCK_WIDTH; x++) {
+                    if (map.getTileId(bx * BLOCK_WIDTH + x,
+                        by * BLOCK_HEIGHT + y) != TilePalette.EMPTY)
+                    {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+
+        private void render(TileGrid map, AtlasRegion[] regions) {
+            Graphics2D g = image.createGraphics();
+            g.setComposite(AlphaComposite.Clear);
+            g.fillRect(0, 0, image.getWidth(), image.getHeight());
+            g.setComposite(AlphaComposite.SrcOver);
+            drawTiles(g, map, regions, bx * BLOCK_WIDTH,
+                by * BLOCK_HEIGHT, BLOCK_WIDTH, BLOCK_HEIGHT, 0, 0);
+            g.dispose();
+        }
+    }
+}
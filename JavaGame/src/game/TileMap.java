@@ -1,37 +1,155 @@
 package com.brackeen.javagamebook.tilegame;
 
 import java.awt.Image;
-import java.util.LinkedList;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.Iterator;
-import com.brackeen.javagamebook.tilegame.sprites.Bullet;
+import java.util.NoSuchElementException;
+import com.brackeen.javagamebook.tilegame.sprites.ProjectilePool;
 import com.brackeen.javagamebook.tilegame.sprites.Creature;
+import com.brackeen.javagamebook.graphics.BodyStore;
 import com.brackeen.javagamebook.graphics.Sprite;
 
 /**
     The TileMap class contains the data for a tile-based
-    map, including Sprites. Each tile is a reference to an
-    Image. Of course, Images are used multiple times in the tile
-    map.
+    map, including Sprites. Each tile is a short id into a
+    TilePalette, which holds the tile Images and whether each
+    tile is solid.
+    <p>
+    Tiles are stored in chunks of CHUNK_WIDTH columns, row by row
+    within each chunk, so scanning a row of tiles reads
+    consecutive memory. A TileMap created with a ChunkLoader
+    streams its chunks: a chunk is loaded the first time one of
+    its tiles is read, and streamAround() loads the chunks near
+    the player, spawns their Sprites, and evicts the least
+    recently used chunks once the loaded chunks use more than
+    the memory budget. The Sprites spawned by an evicted chunk
+    are removed with it, and spawned again if the chunk is
+    loaded again, except the ones that were removed from the map
+    in the meantime (like a collected power up or a dead
+    creature). This way a level with millions of columns only
+    needs memory for the part of it being played.
+    <p>
+    A TileMap is only used by the simulation thread. A render
+    thread draws WorldSnapshots instead, which keep their own
+    references to the chunks on screen.
 */
-public class TileMap {
+public class TileMap implements TileGrid {
 
-    private Image[][] tiles;
-    private LinkedList sprites;
+    public static final int CHUNK_BITS = 6;
+    public static final int CHUNK_WIDTH = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_WIDTH - 1;
+
+    /**
+        The default memory budget, in bytes, for the tiles of
+        loaded chunks.
+    */
+    public static final long DEFAULT_MEMORY_BUDGET = 4 * 1024 * 1024;
+
+    /**
+        The default number of columns on each side of the player
+        that streamAround() keeps loaded.
+    */
+    public static final int DEFAULT_STREAM_RADIUS = 2 * CHUNK_WIDTH;
+
+    /**
+        A ChunkLoader reads the chunks of a streamed TileMap from
+        wherever the level is stored.
+    */
+    public interface ChunkLoader {
+
+        /**
+            Gets the tile ids of a chunk, row by row, CHUNK_WIDTH
+            ids per row. Columns past the right edge of the map
+            are empty. The array may be shared by several maps,
+            so it must not be changed; a TileMap copies a chunk
+            before changing it.
+        */
+        public short[] loadTiles(int chunk) throws IOException;
+
+        /**
+            Adds the Sprites that start in a chunk to the map with
+            addChunkSprites(). This is called each time the chunk
+            is streamed in after being evicted.
+        */
+        public void spawnSprites(TileMap map, int chunk)
+            throws IOException;
+    }
+
+    private short[][] chunks;
+    private int width;
+    private int height;
+    private TilePalette palette;
+
+    private ChunkLoader loader;
+    private long[] chunkStamps;
+    private int[] loadedChunks;
+    private int numLoadedChunks;
+    private int maxLoadedChunks;
+    private BitSet spawnedChunks;
+    private Sprite[][] chunkSprites;
+    private HashMap<Integer, BitSet> removedChunkSprites;
+    private BitSet pinnedChunks;
+    private int streamRadius;
+    private long clock;
+
+    private SpatialHash spriteIndex;
+    private EntityWorld world;
     private Sprite player;
 
-    private LinkedList bullets;
-    private LinkedList enemyBullets;
+    private ProjectilePool projectiles;
     private int gameScore;
 
     /**
         Creates a new TileMap with the specified width and
-        height (in number of tiles) of the map.
+        height (in number of tiles) of the map, and an empty
+        TilePalette.
     */
     public TileMap(int width, int height) {
-        tiles = new Image[width][height];
-        sprites = new LinkedList();
-	bullets = new LinkedList();
-	enemyBullets = new LinkedList();
+        this(width, height, new TilePalette());
+    }
+
+
+    /**
+        Creates a new TileMap with the specified width and
+        height (in number of tiles) of the map, using tiles from
+        the specified palette.
+    */
+    public TileMap(int width, int height, TilePalette palette) {
+        this(width, height, palette, null);
+        for (int i=0; i<chunks.length; i++) {
+            chunks[i] = new short[CHUNK_WIDTH * height];
+        }
+    }
+
+
+    /**
+        Creates a new TileMap with the specified width and
+        height (in number of tiles) of the map, using tiles from
+        the specified palette. Chunks are loaded as needed with
+        the specified ChunkLoader.
+    */
+    public TileMap(int width, int height, TilePalette palette,
+        ChunkLoader loader)
+    {
+        this.width = width;
+        this.height = height;
+        this.palette = palette;
+        this.loader = loader;
+        int numChunks = (width + CHUNK_MASK) >> CHUNK_BITS;
+        chunks = new short[numChunks][];
+        chunkStamps = new long[numChunks];
+        loadedChunks = new int[16];
+        spawnedChunks = new BitSet(numChunks);
+        chunkSprites = new Sprite[numChunks][];
+        removedChunkSprites = new HashMap<Integer, BitSet>();
+        pinnedChunks = new BitSet(numChunks);
+        streamRadius = DEFAULT_STREAM_RADIUS;
+        setMemoryBudget(DEFAULT_MEMORY_BUDGET);
+        spriteIndex = new SpatialHash();
+        world = new EntityWorld();
+        projectiles = new ProjectilePool();
 	gameScore = 0;
     }
 
@@ -48,7 +166,7 @@ public class TileMap {
         Gets the width of this TileMap (number of tiles across).
     */
     public int getWidth() {
-        return tiles.length;
+        return width;
     }
 
 
@@ -56,7 +174,38 @@ public class TileMap {
         Gets the height of this TileMap (number of tiles down).
     */
     public int getHeight() {
-        return tiles[0].length;
+        return height;
+    }
+
+
+    /**
+        Gets the palette of tiles used by this map.
+    */
+    public TilePalette getPalette() {
+        return palette;
+    }
+
+
+    /**
+        Gets the id of the tile at the specified location.
+        Returns TilePalette.EMPTY if no tile is at the location or
+        if the location is out of bounds.
+    */
+    public int getTileId(int x, int y) {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            return TilePalette.EMPTY;
+        }
+        short[] chunk = getChunk(x >> CHUNK_BITS);
+        return chunk[(y << CHUNK_BITS) + (x & CHUNK_MASK)];
+    }
+
+
+    /**
+        Checks if the tile at the specified location is solid.
+        Returns false if the location is out of bounds.
+    */
+    public boolean isSolid(int x, int y) {
+        return palette.isSolid(getTileId(x, y));
     }
 
 
@@ -66,22 +215,193 @@ public class TileMap {
         bounds.
     */
     public Image getTile(int x, int y) {
-        if (x < 0 || x >= getWidth() ||
-            y < 0 || y >= getHeight())
-        {
-            return null;
+        return palette.getImage(getTileId(x, y));
+    }
+
+
+    /**
+        Sets the id of the tile at the specified location. The
+        chunk's array is never changed: the tiles are copied into
+        a new array (the ChunkLoader may share the old one with
+        other maps, and a WorldSnapshot may be drawing it). A
+        changed chunk is never evicted, so the change isn't lost.
+    */
+    public void setTile(int x, int y, int id) {
+        int chunk = x >> CHUNK_BITS;
+        short[] tiles = getChunk(chunk).clone();
+        tiles[(y << CHUNK_BITS) + (x & CHUNK_MASK)] = (short)id;
+        chunks[chunk] = tiles;
+        pinnedChunks.set(chunk);
+    }
+
+
+    /**
+        Gets the tile ids of a chunk, loading the chunk if it
+        isn't loaded.
+    */
+    public short[] getChunk(int chunk) {
+        short[] tiles = chunks[chunk];
+        if (tiles == null) {
+            tiles = loadChunk(chunk);
+        }
+        return tiles;
+    }
+
+
+    /**
+        Sets how many bytes of tiles the loaded chunks of a
+        streamed map may use. The chunks near the player are kept
+        even if they alone use more than the budget.
+    */
+    public void setMemoryBudget(long bytes) {
+        maxLoadedChunks = (int)Math.max(1,
+            Math.min(Integer.MAX_VALUE, bytes / getChunkBytes()));
+    }
+
+
+    /**
+        Sets how many columns on each side of the player
+        streamAround() keeps loaded.
+    */
+    public void setStreamRadius(int tiles) {
+        streamRadius = Math.max(0, tiles);
+    }
+
+
+    /**
+        Gets the number of bytes of tiles in one chunk.
+    */
+    public int getChunkBytes() {
+        return Math.max(1, CHUNK_WIDTH * height * 2);
+    }
+
+
+    /**
+        Gets the ChunkLoader this map's chunks are loaded with, or
+        null if every chunk is in memory.
+    */
+    public ChunkLoader getChunkLoader() {
+        return loader;
+    }
+
+
+    /**
+        Gets the number of chunks loaded by the ChunkLoader that
+        are still in memory.
+    */
+    public int getLoadedChunkCount() {
+        return numLoadedChunks;
+    }
+
+
+    /**
+        Checks if the columns from firstX to lastX (in tiles) are
+        in memory, so reading their tiles won't load a chunk.
+        Columns outside the map never need loading.
+    */
+    public boolean isLoaded(int firstX, int lastX) {
+        int first = Math.max(firstX, 0) >> CHUNK_BITS;
+        int last = Math.min(lastX, width - 1) >> CHUNK_BITS;
+        for (int chunk=first; chunk<=last; chunk++) {
+            if (chunks[chunk] == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+        Loads the chunks within the stream radius of the
+        specified column and spawns their Sprites, then evicts
+        the least recently used chunks if the loaded chunks are
+        over the memory budget. Call this when no Iterator of the
+        Sprites is in use, since it may add Sprites. Does nothing
+        if this map isn't streamed.
+    */
+    public void streamAround(int tileX) {
+        if (loader == null) {
+            return;
+        }
+        int first = Math.max(0, (tileX - streamRadius) >> CHUNK_BITS);
+        int last = Math.min(chunks.length - 1,
+            (tileX + streamRadius) >> CHUNK_BITS);
+        clock++;
+        for (int i=first; i<=last; i++) {
+            if (chunks[i] == null) {
+                loadChunk(i);
+            }
+            chunkStamps[i] = clock;
+            if (!spawnedChunks.get(i)) {
+                spawnedChunks.set(i);
+                try {
+                    loader.spawnSprites(this, i);
+                }
+                catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+        evictChunks(first, last);
+    }
+
+
+    /**
+        Loads a chunk with the ChunkLoader. If the chunk can't be
+        read, the error is printed and the chunk is left empty.
+    */
+    private short[] loadChunk(int chunk) {
+        if (chunks[chunk] != null) {
+            return chunks[chunk];
+        }
+        short[] tiles;
+        try {
+            tiles = loader.loadTiles(chunk);
         }
-        else {
-            return tiles[x][y];
+        catch (IOException ex) {
+            ex.printStackTrace();
+            tiles = new short[CHUNK_WIDTH * height];
         }
+        if (numLoadedChunks == loadedChunks.length) {
+            int[] newLoaded = new int[numLoadedChunks * 2];
+            System.arraycopy(loadedChunks, 0, newLoaded, 0,
+                numLoadedChunks);
+            loadedChunks = newLoaded;
+        }
+        loadedChunks[numLoadedChunks++] = chunk;
+        chunkStamps[chunk] = clock;
+        chunks[chunk] = tiles;
+        return tiles;
     }
 
 
     /**
-        Sets the tile at the specified location.
+        Evicts the least recently used chunks, except the chunks
+        from first to last and chunks that have been changed,
+        until the loaded chunks fit in the memory budget.
     */
-    public void setTile(int x, int y, Image tile) {
-        tiles[x][y] = tile;
+    private void evictChunks(int first, int last) {
+        while (numLoadedChunks > maxLoadedChunks) {
+            int oldest = -1;
+            for (int i=0; i<numLoadedChunks; i++) {
+                int chunk = loadedChunks[i];
+                if ((chunk < first || chunk > last) &&
+                    !pinnedChunks.get(chunk) &&
+                    (oldest < 0 || chunkStamps[chunk] <
+                    chunkStamps[loadedChunks[oldest]]))
+                {
+                    oldest = i;
+                }
+            }
+            if (oldest < 0) {
+                // everything left is in use
+                return;
+            }
+            int chunk = loadedChunks[oldest];
+            chunks[chunk] = null;
+            loadedChunks[oldest] = loadedChunks[--numLoadedChunks];
+            despawnChunkSprites(chunk);
+        }
     }
 
 
@@ -103,48 +423,206 @@ public class TileMap {
 
 
     /**
-        Adds a Sprite object to this map.
+        Adds a Sprite object to this map, as an entity with only a
+        BODY.
     */
     public void addSprite(Sprite sprite) {
-        sprites.add(sprite);
+        addSprite(sprite, Archetype.NONE);
     }
 
-    public void addBullet(Bullet sprite) {
-        bullets.add(sprite);
+
+    /**
+        Adds a Sprite object to this map, as an entity with the
+        components of the specified Archetype.
+    */
+    public void addSprite(Sprite sprite, Archetype archetype) {
+        world.add(sprite, archetype);
+        spriteIndex.add(sprite);
     }
 
-    public void addEnemyBullet(Bullet sprite) {
-	enemyBullets.add(sprite);
+
+    /**
+        Adds the Sprites that start in a chunk to this map, each as
+        an entity with the components of the matching Archetype.
+        Room for all of them is made at once. Sprites of the chunk
+        that were removed from the map since the chunk was last
+        evicted aren't added again. The map keeps the array, to
+        remove the Sprites when the chunk is evicted.
+    */
+    public void addChunkSprites(int chunk, Sprite[] sprites,
+        Archetype[] archetypes)
+    {
+        BitSet removed = removedChunkSprites.get(Integer.valueOf(chunk));
+        world.reserve(sprites.length);
+        for (int i=0; i<sprites.length; i++) {
+            if (removed != null && removed.get(i)) {
+                sprites[i] = null;
+            }
+            else {
+                addSprite(sprites[i], archetypes[i]);
+            }
+        }
+        chunkSprites[chunk] = sprites;
     }
 
+
+    /**
+        Removes the Sprites spawned by an evicted chunk, wherever
+        they are now. Sprites that have already been removed are
+        remembered, so they aren't spawned again.
+    */
+    private void despawnChunkSprites(int chunk) {
+        spawnedChunks.clear(chunk);
+        Sprite[] sprites = chunkSprites[chunk];
+        if (sprites == null) {
+            return;
+        }
+        chunkSprites[chunk] = null;
+        for (int i=0; i<sprites.length; i++) {
+            Sprite sprite = sprites[i];
+            if (sprite == null) {
+                continue;
+            }
+            if (world.contains(sprite)) {
+                removeSprite(sprite);
+            }
+            else {
+                Integer key = Integer.valueOf(chunk);
+                BitSet removed = removedChunkSprites.get(key);
+                if (removed == null) {
+                    removed = new BitSet(sprites.length);
+                    removedChunkSprites.put(key, removed);
+                }
+                removed.set(i);
+            }
+        }
+    }
+
+
     /**
         Removes a Sprite object from this map.
     */
     public void removeSprite(Sprite sprite) {
-        sprites.remove(sprite);
+        spriteIndex.remove(sprite);
+        world.remove(sprite);
     }
 
-    public void removeBullet(Bullet sprite) {
-	bullets.remove(sprite);
+    /**
+        Saves the position of the player, every active Sprite and
+        every bullet at the start of a simulation tick, so they can be
+        drawn interpolated between ticks.
+    */
+    public void savePositions() {
+        player.savePosition();
+        // dormant Sprites only move in the dormant update, which
+        // saves their positions itself
+        ComponentStore active = world.getStore(EntityWorld.ACTIVE);
+        BodyStore bodies = world.getBodies();
+        float[] x = bodies.getXArray();
+        float[] y = bodies.getYArray();
+        float[] prevX = bodies.getPrevXArray();
+        float[] prevY = bodies.getPrevYArray();
+        for (int i=0; i<active.size(); i++) {
+            int entity = active.getEntity(i);
+            prevX[entity] = x[entity];
+            prevY[entity] = y[entity];
+        }
+        projectiles.savePositions();
     }
 
-    public void removeEnemyBullet(Bullet sprite) {
-	enemyBullets.remove(sprite);
-    }
 
     /**
         Gets an Iterator of all the Sprites in this map,
-        excluding the player Sprite.
+        excluding the player Sprite. Removing a Sprite through the
+        Iterator also removes it from the spatial index and the
+        EntityWorld.
     */
-    public Iterator getSprites() {
-        return sprites.iterator();
+    public Iterator<Sprite> getSprites() {
+        return new SpriteIterator();
     }
 
-    public Iterator getBullets() {
-        return bullets.iterator();
+
+    /**
+        Gets the spatial index of the Sprites in this map,
+        excluding the player Sprite. Use it to find the Sprites
+        that overlap an area without looking at every Sprite.
+    */
+    public SpatialHash getSpriteIndex() {
+        return spriteIndex;
     }
 
-    public Iterator getEnemyBullets() {
-	return enemyBullets.iterator();
+
+    /**
+        Gets the entities of the Sprites in this map, excluding
+        the player Sprite, and their components.
+    */
+    public EntityWorld getWorld() {
+        return world;
+    }
+
+
+    /**
+        Updates the spatial index after Sprites have moved. Only
+        the Sprites whose position changed since the last update
+        are looked at.
+    */
+    public void updateSpriteIndex() {
+        BodyStore bodies = world.getBodies();
+        int[] moved = bodies.getMovedArray();
+        for (int i=0; i<bodies.getMovedCount(); i++) {
+            // the entity may have been removed since it moved
+            Sprite sprite = world.getSprite(moved[i]);
+            if (sprite != null) {
+                spriteIndex.update(sprite);
+            }
+        }
+        bodies.clearMoved();
+    }
+
+    /**
+        Gets the bullets fired by the player and by enemies.
+    */
+    public ProjectilePool getProjectiles() {
+        return projectiles;
+    }
+
+
+    /**
+        An Iterator over the Sprites that keeps the spatial index
+        and the EntityWorld in sync when Sprites are removed. It
+        goes through the entities backwards, since removing one
+        moves the last entity into its place.
+    */
+    private class SpriteIterator implements Iterator<Sprite> {
+
+        private ComponentStore bodies;
+        private int next;
+        private Sprite current;
+
+        public SpriteIterator() {
+            bodies = world.getStore(EntityWorld.BODY);
+            next = bodies.size() - 1;
+        }
+
+        public boolean hasNext() {
+            return (next >= 0);
+        }
+
+        public Sprite next() {
+            if (next < 0) {
+                throw new NoSuchElementException();
+            }
+            current = world.getSprite(bodies.getEntity(next--));
+            return current;
+        }
+
+        public void remove() {
+            if (current == null) {
+                throw new IllegalStateException();
+            }
+            spriteIndex.remove(current);
+            world.remove(current);
+            current = null;
+        }
     }
 }
@@ -2,19 +2,20 @@ package com.brackeen.javagamebook.tilegame;
 
 import java.awt.*;
 import java.awt.geom.*;
-import java.util.Iterator;
 
+import com.brackeen.javagamebook.graphics.AtlasRegion;
 import com.brackeen.javagamebook.graphics.Sprite;
+import com.brackeen.javagamebook.graphics.TextureAtlas;
+import com.brackeen.javagamebook.util.FrameProfiler;
 import com.brackeen.javagamebook.tilegame.sprites.*;
 
 /**
     The TileMapRenderer class draws a TileMap on the screen.
-    It draws all tiles, sprites, and an optional background image
+    It draws all tiles, sprites, and optional background layers
     centered around the position of the player.
 
-    <p>If the width of background image is smaller the width of
-    the tile map, the background image will appear to move
-    slowly, creating a parallax background effect.
+    <p>Background layers scroll slower than the tile map,
+    creating a parallax background effect (see ParallaxLayer).
 
     <p>Also, three static methods are provided to convert pixels
     to tile positions, and vice-versa.
@@ -28,7 +29,26 @@ public class TileMapRenderer {
     // Math.pow(2, TILE_SIZE_BITS) == TILE_SIZE
     private static final int TILE_SIZE_BITS = 6;
 
-    private Image background;
+    // the diameter of a bullet
+    private static final int BULLET_SIZE = 10;
+
+    // how often the profiler overlay text is refreshed
+    private static final long PROFILER_REFRESH_TIME = 500;
+
+    private ParallaxLayer[] backgroundLayers = new ParallaxLayer[0];
+    private TextureAtlas atlas;
+    private AtlasRegion[] tileRegions;
+    private TilePalette tileRegionsPalette;
+    private TileLayerCache tileCache;
+
+    private Image[] bulletImages;
+    private HudLabel healthLabel = new HudLabel("Health: ", Color.BLACK);
+    private HudLabel scoreLabel = new HudLabel("Score: ", Color.BLACK);
+
+    private FrameProfiler profiler;
+    private volatile boolean profilerVisible;
+    private String[] profilerLines;
+    private long profilerRefreshTime;
 
     /**
         Converts a pixel position to a tile position.
@@ -66,10 +86,76 @@ public class TileMapRenderer {
 
 
     /**
-        Sets the background to draw.
+        Sets the background to draw. The background image is
+        fitted to the width of the map, so if it's narrower than
+        the map, it appears to move slowly. If background is null,
+        all background layers are removed.
     */
     public void setBackground(Image background) {
-        this.background = background;
+        backgroundLayers = new ParallaxLayer[0];
+        if (background != null) {
+            addBackgroundLayer(new ParallaxLayer(background));
+        }
+    }
+
+
+    /**
+        Adds a background layer, in front of the layers already
+        added.
+    */
+    public void addBackgroundLayer(ParallaxLayer layer) {
+        ParallaxLayer[] layers =
+            new ParallaxLayer[backgroundLayers.length + 1];
+        System.arraycopy(backgroundLayers, 0, layers, 0,
+            backgroundLayers.length);
+        layers[backgroundLayers.length] = layer;
+        backgroundLayers = layers;
+    }
+
+
+    /**
+        Sets the TextureAtlas to draw tiles and Sprites from. If
+        atlas is null, each image is drawn from its own surface.
+    */
+    public void setTextureAtlas(TextureAtlas atlas) {
+        this.atlas = atlas;
+        tileRegions = null;
+        if (tileCache != null) {
+            tileCache.invalidate();
+        }
+    }
+
+
+    /**
+        Sets whether tiles are drawn from cached off-screen
+        images of several columns each (see TileLayerCache)
+        instead of one tile at a time. Off by default, since it
+        has only been measured on an unaccelerated pipeline,
+        where it is slower.
+    */
+    public void setTileCacheEnabled(boolean enabled) {
+        tileCache = enabled ? new TileLayerCache() : null;
+    }
+
+
+    /**
+        Sets the FrameProfiler shown by the profiler overlay.
+    */
+    public void setProfiler(FrameProfiler profiler) {
+        this.profiler = profiler;
+    }
+
+
+    /**
+        Sets whether the profiler overlay is drawn.
+    */
+    public void setProfilerVisible(boolean profilerVisible) {
+        this.profilerVisible = profilerVisible;
+    }
+
+
+    public boolean isProfilerVisible() {
+        return profilerVisible;
     }
 
 
@@ -78,109 +164,350 @@ public class TileMapRenderer {
     */
     public void draw(Graphics2D g, TileMap map,
         int screenWidth, int screenHeight)
+    {
+        draw(g, map, screenWidth, screenHeight, 1);
+    }
+
+
+    /**
+        Draws the specified TileMap, with the player, sprites and
+        bullets placed between their positions at the start and
+        end of the last tick. An alpha of 1 draws the current
+        positions.
+    */
+    public void draw(Graphics2D g, TileMap map,
+        int screenWidth, int screenHeight, float alpha)
     {
         Sprite player = map.getPlayer();
-        int mapWidth = tilesToPixels(map.getWidth());
+        float playerX = player.getInterpolatedX(alpha);
 
         // get the scrolling position of the map
         // based on player's position
+        int offsetX = getOffsetX(playerX, map, screenWidth);
+
+        // get the y offset to draw all sprites and tiles
+        int offsetY = getOffsetY(map, screenHeight);
+
+        drawBackground(g, map, offsetX, screenWidth, screenHeight);
+        drawTiles(g, map, offsetX, offsetY, screenWidth, screenHeight);
+
+        // draw player
+        drawImage(g, player.getImage(),
+            Math.round(playerX) + offsetX,
+            Math.round(player.getInterpolatedY(alpha)) + offsetY);
+
+        // draw the sprites on screen
+        SpatialHash index = map.getSpriteIndex();
+        ComponentStore ai = map.getWorld().getStore(EntityWorld.AI);
+        int count = findVisibleSprites(map, offsetX, offsetY,
+            screenWidth, screenHeight);
+        for (int i=0; i<count; i++) {
+            Sprite sprite = index.getResult(i);
+            int x = Math.round(sprite.getInterpolatedX(alpha)) +
+                offsetX;
+            int y = Math.round(sprite.getInterpolatedY(alpha)) +
+                offsetY;
+            Image image = sprite.getImage();
+            if (isOnScreen(image, x, y, screenWidth, screenHeight)) {
+                drawImage(g, image, x, y);
+            }
+
+            // wake up the creature when it's on screen
+            if (ai.has(sprite.getEntity()) &&
+                x >= 0 && x < screenWidth)
+            {
+                ((Creature)sprite).wakeUp();
+            }
+        }
+
+        drawProjectiles(g, map.getProjectiles(), alpha, offsetX, offsetY,
+            screenWidth, screenHeight);
+
+        drawHud(g, ((Creature)player).getHealth(), map.getScore(),
+            screenHeight);
+    }
+
+
+    /**
+        Draws a WorldSnapshot published by the simulation thread.
+        Unlike drawing a TileMap, this doesn't touch any game
+        state, so it's safe to call from a render thread while the
+        simulation updates the TileMap.
+    */
+    public void draw(Graphics2D g, WorldSnapshot snapshot,
+        int screenWidth, int screenHeight, float alpha)
+    {
+        // the snapshot has its own copy of the chunks on screen
+        float playerX = snapshot.getPlayerX(alpha);
+        int offsetX = getOffsetX(playerX, snapshot, screenWidth);
+        int offsetY = getOffsetY(snapshot, screenHeight);
+
+        drawBackground(g, snapshot, offsetX, screenWidth, screenHeight);
+        drawTiles(g, snapshot, offsetX, offsetY, screenWidth,
+            screenHeight);
+
+        // draw player
+        drawImage(g, snapshot.getPlayerImage(),
+            Math.round(playerX) + offsetX,
+            Math.round(snapshot.getPlayerY(alpha)) + offsetY);
+
+        // draw the sprites on screen (the snapshot only has the
+        // sprites near the screen)
+        for (int i=0; i<snapshot.getSpriteCount(); i++) {
+            Image image = snapshot.getSpriteImage(i);
+            int x = Math.round(snapshot.getSpriteX(i, alpha)) + offsetX;
+            int y = Math.round(snapshot.getSpriteY(i, alpha)) + offsetY;
+            if (isOnScreen(image, x, y, screenWidth, screenHeight)) {
+                drawImage(g, image, x, y);
+            }
+        }
+
+        drawProjectiles(g, snapshot.getProjectiles(), alpha,
+            offsetX, offsetY, screenWidth, screenHeight);
+
+        drawHud(g, snapshot.getHealth(), snapshot.getScore(),
+            screenHeight);
+    }
+
+
+    /**
+        Gets the horizontal scrolling position of the map, which
+        keeps the player near the center of the screen without
+        showing anything past the edges of the map.
+    */
+    public static int getOffsetX(float playerX, TileGrid map,
+        int screenWidth)
+    {
+        int mapWidth = tilesToPixels(map.getWidth());
         int offsetX = screenWidth / 2 -
-            Math.round(player.getX()) - TILE_SIZE;
+            Math.round(playerX) - TILE_SIZE;
         offsetX = Math.min(offsetX, 0);
         offsetX = Math.max(offsetX, screenWidth - mapWidth);
+        return offsetX;
+    }
 
-        // get the y offset to draw all sprites and tiles
-        int offsetY = screenHeight -
-            tilesToPixels(map.getHeight());
 
-        // draw black background, if needed
-        if (background == null ||
-            screenHeight > background.getHeight(null))
+    /**
+        Gets the vertical offset of the map, which lines up the
+        bottom of the map with the bottom of the screen.
+    */
+    public static int getOffsetY(TileGrid map, int screenHeight) {
+        return screenHeight - tilesToPixels(map.getHeight());
+    }
+
+
+    /**
+        Finds the Sprites of a map in the columns on screen, from
+        the top of the map (or screen) to the bottom, with a
+        margin of a tile around them for Sprites drawn between
+        their positions at the start and end of a tick. Returns
+        the number found; get them with getResult() of the map's
+        SpatialHash. Only the Sprites near the screen are looked
+        at, so the cost doesn't depend on the size of the level.
+    */
+    public static int findVisibleSprites(TileMap map, int offsetX,
+        int offsetY, int screenWidth, int screenHeight)
+    {
+        int top = Math.min(0, -offsetY) - TILE_SIZE;
+        int bottom = Math.max(tilesToPixels(map.getHeight()),
+            screenHeight - offsetY) + TILE_SIZE;
+        return map.getSpriteIndex().query(-offsetX - TILE_SIZE, top,
+            screenWidth + 2 * TILE_SIZE, bottom - top);
+    }
+
+
+    /**
+        Checks if any part of an image drawn at (x, y) is on
+        screen.
+    */
+    private static boolean isOnScreen(Image image, int x, int y,
+        int screenWidth, int screenHeight)
+    {
+        return (x < screenWidth && y < screenHeight &&
+            x + image.getWidth(null) > 0 &&
+            y + image.getHeight(null) > 0);
+    }
+
+
+    private void drawBackground(Graphics2D g, TileGrid map,
+        int offsetX, int screenWidth, int screenHeight)
+    {
+        int mapWidth = tilesToPixels(map.getWidth());
+
+        // start from the last layer that covers the whole screen;
+        // nothing behind it would show
+        int first = backgroundLayers.length - 1;
+        while (first >= 0 &&
+            !backgroundLayers[first].covers(screenWidth, screenHeight))
         {
+            first--;
+        }
+
+        // draw black background, if needed
+        if (first < 0) {
             g.setColor(Color.black);
             g.fillRect(0, 0, screenWidth, screenHeight);
+            first = 0;
         }
 
-        // draw parallax background image
-        if (background != null) {
-            int x = offsetX *
-                (screenWidth - background.getWidth(null)) /
-                (screenWidth - mapWidth);
-            int y = screenHeight - background.getHeight(null);
+        // draw parallax background layers
+        for (int i=first; i<backgroundLayers.length; i++) {
+            backgroundLayers[i].draw(g, offsetX, mapWidth,
+                screenWidth, screenHeight);
+        }
+    }
+
 
-            g.drawImage(background, x, y, null);
+    private void drawTiles(Graphics2D g, TileGrid map,
+        int offsetX, int offsetY, int screenWidth, int screenHeight)
+    {
+        AtlasRegion[] regions = getTileRegions(map.getPalette());
+        if (tileCache != null) {
+            tileCache.draw(g, map, regions, offsetX, offsetY,
+                screenWidth, screenHeight);
+        }
+        else {
+            // draw the visible tiles
+            int firstTileX = pixelsToTiles(-offsetX);
+            int lastTileX = pixelsToTiles(screenWidth - offsetX - 1);
+            int firstTileY = Math.max(0, pixelsToTiles(-offsetY));
+            int lastTileY = Math.min(map.getHeight() - 1,
+                pixelsToTiles(screenHeight - offsetY - 1));
+            TileLayerCache.drawTiles(g, map, regions, firstTileX,
+                firstTileY, lastTileX - firstTileX + 1,
+                lastTileY - firstTileY + 1,
+                tilesToPixels(firstTileX) + offsetX,
+                tilesToPixels(firstTileY) + offsetY);
         }
+    }
+
 
-        // draw the visible tiles
-        int firstTileX = pixelsToTiles(-offsetX);
-        int lastTileX = firstTileX +
-            pixelsToTiles(screenWidth) + 1;
-        for (int y=0; y<map.getHeight(); y++) {
-            for (int x=firstTileX; x <= lastTileX; x++) {
-                Image image = map.getTile(x, y);
+    /**
+        Gets the atlas region of each tile in a palette, by tile
+        id, or null if there is no atlas.
+    */
+    private AtlasRegion[] getTileRegions(TilePalette palette) {
+        if (atlas == null) {
+            return null;
+        }
+        if (tileRegions == null || tileRegionsPalette != palette ||
+            tileRegions.length != palette.size())
+        {
+            tileRegions = new AtlasRegion[palette.size()];
+            for (int i=1; i<tileRegions.length; i++) {
+                Image image = palette.getImage(i);
                 if (image != null) {
-                    g.drawImage(image,
-                        tilesToPixels(x) + offsetX,
-                        tilesToPixels(y) + offsetY,
-                        null);
+                    tileRegions[i] = atlas.getRegion(image);
                 }
             }
+            tileRegionsPalette = palette;
         }
+        return tileRegions;
+    }
 
-        // draw player
-        g.drawImage(player.getImage(),
-            Math.round(player.getX()) + offsetX,
-            Math.round(player.getY()) + offsetY,
-            null);
-
-        // draw sprites
-        Iterator i = map.getSprites();
-        while (i.hasNext()) {
-            Sprite sprite = (Sprite)i.next();
-            int x = Math.round(sprite.getX()) + offsetX;
-            int y = Math.round(sprite.getY()) + offsetY;
-            g.drawImage(sprite.getImage(), x, y, null);
 
-            // wake up the creature when it's on screen
-            if (sprite instanceof Grub &&
-                x >= 0 && x < screenWidth)
+    /**
+        Draws an image from the atlas, if there is one.
+    */
+    private void drawImage(Graphics2D g, Image image, int x, int y) {
+        if (atlas != null) {
+            atlas.drawImage(g, image, x, y);
+        }
+        else {
+            g.drawImage(image, x, y, null);
+        }
+    }
+
+
+    private void drawProjectiles(Graphics2D g, ProjectilePool bullets,
+        float alpha, int offsetX, int offsetY, int screenWidth,
+        int screenHeight)
+    {
+        for (int i=0; i<bullets.size(); i++) {
+            int x = Math.round(bullets.getInterpolatedX(i, alpha)) +
+                offsetX;
+            int y = Math.round(bullets.getY(i)) + offsetY;
+            if (x >= screenWidth || y >= screenHeight ||
+                x + BULLET_SIZE <= 0 || y + BULLET_SIZE <= 0)
             {
-                ((Grub)sprite).wakeUp();
+                // off screen
+                continue;
             }
+            g.drawImage(getBulletImage(g, bullets.getOwner(i)), x, y,
+                null);
+        }
+    }
+
+
+    /**
+        Gets the image of a bullet fired by the specified owner.
+        The images are drawn the first time they're needed, so
+        drawing a bullet is a single blit.
+    */
+    private Image getBulletImage(Graphics2D g, int owner) {
+        if (bulletImages == null) {
+            GraphicsConfiguration gc = g.getDeviceConfiguration();
+            bulletImages = new Image[2];
+            bulletImages[ProjectilePool.OWNER_PLAYER] =
+                createBulletImage(gc, Color.RED);
+            bulletImages[ProjectilePool.OWNER_ENEMY] =
+                createBulletImage(gc, Color.BLACK);
         }
+        return bulletImages[owner];
+    }
+
+
+    private static Image createBulletImage(GraphicsConfiguration gc,
+        Color color)
+    {
+        Image image = gc.createCompatibleImage(BULLET_SIZE, BULLET_SIZE,
+            Transparency.TRANSLUCENT);
+        Graphics2D g = (Graphics2D)image.getGraphics();
+	// draw a circle
+	g.setColor(color);
+	g.fill(new Ellipse2D.Double(0, 0, BULLET_SIZE, BULLET_SIZE));
+        g.dispose();
+        return image;
+    }
+
 
-	// draw bullets
-	Iterator b = map.getBullets();
-	while (b.hasNext()) {
-	    Bullet sprite = (Bullet)b.next();
-	    int x = Math.round(sprite.getX()) + offsetX;
-	    int y = Math.round(sprite.getY()) + offsetY;
-	    // draw a circle
-	    g.setColor(Color.RED);
-	    Ellipse2D.Double circle = new Ellipse2D.Double(x, y, 10, 10);
-	    g.fill(circle);
-	}
-
-	// draw enemy bullets
-	Iterator eb = map.getEnemyBullets();
-	while (eb.hasNext()) {
-	    Bullet sprite = (Bullet)eb.next();
-	    int x = Math.round(sprite.getX()) + offsetX;
-	    int y = Math.round(sprite.getY()) + offsetY;
-	    // draw a circle
-	    g.setColor(Color.BLACK);
-	    Ellipse2D.Double circle = new Ellipse2D.Double(x, y, 10, 10);
-	    g.fill(circle);
-	}
-	
-	
+    private void drawHud(Graphics2D g, int health, int score,
+        int screenHeight)
+    {
 	// draw health and score labels
-	g.setColor(Color.BLACK);
-	String healthString = "Health: " + ((Creature)player).getHealth();
-	g.drawString(healthString, 10, 50);
-	String scoreString = "Score: " + map.getScore();
-	g.drawString(scoreString, 200, 50);
+	healthLabel.draw(g, health, 10, 50);
+	scoreLabel.draw(g, score, 200, 50);
 
+        if (profilerVisible && profiler != null) {
+            drawProfiler(g, screenHeight);
+        }
+    }
+
+
+    /**
+        Draws the percentiles of each profiled phase in the
+        bottom left corner. The text is refreshed a couple of
+        times a second so it stays readable.
+    */
+    private void drawProfiler(Graphics2D g, int screenHeight) {
+        long currTime = System.currentTimeMillis();
+        if (profilerLines == null ||
+            currTime - profilerRefreshTime >= PROFILER_REFRESH_TIME)
+        {
+            profilerLines = new String[FrameProfiler.NUM_PHASES];
+            for (int i=0; i<profilerLines.length; i++) {
+                profilerLines[i] = profiler.getSummary(i);
+            }
+            profilerRefreshTime = currTime;
+        }
+
+        int lineHeight = g.getFontMetrics().getHeight();
+        int y = screenHeight - lineHeight * profilerLines.length;
+        g.setColor(Color.WHITE);
+        for (int i=0; i<profilerLines.length; i++) {
+            g.drawString(profilerLines[i], 10, y);
+            y += lineHeight;
+        }
     }
 
 }
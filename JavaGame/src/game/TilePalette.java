@@ -0,0 +1,109 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.awt.Image;
+
+/**
+    The TilePalette maps the tile ids stored in a TileMap to the
+    tile Images and their properties. Id 0 (EMPTY) means there is
+    no tile. Ids are assigned in the order tiles are added,
+    starting at 1.
+*/
+public class TilePalette {
+
+    public static final int EMPTY = 0;
+
+    // tile ids are stored as shorts
+    public static final int MAX_TILES = Short.MAX_VALUE;
+
+    private String[] names;
+    private Image[] images;
+    private boolean[] solid;
+    private int size;
+
+    /**
+        Creates a new TilePalette with only the EMPTY tile.
+    */
+    public TilePalette() {
+        names = new String[16];
+        images = new Image[16];
+        solid = new boolean[16];
+        size = 1;
+    }
+
+
+    /**
+        Adds a tile and returns its id. The name (usually the
+        name of the image file) identifies the tile in
+        getSignature().
+    */
+    public int add(String name, Image image, boolean isSolid) {
+        if (size == MAX_TILES) {
+            throw new IllegalStateException("Too many tiles");
+        }
+        if (size == images.length) {
+            String[] newNames = new String[size * 2];
+            Image[] newImages = new Image[size * 2];
+            boolean[] newSolid = new boolean[size * 2];
+            System.arraycopy(names, 0, newNames, 0, size);
+            System.arraycopy(images, 0, newImages, 0, size);
+            System.arraycopy(solid, 0, newSolid, 0, size);
+            names = newNames;
+            images = newImages;
+            solid = newSolid;
+        }
+        names[size] = name;
+        images[size] = image;
+        solid[size] = isSolid;
+        return size++;
+    }
+
+
+    /**
+        Gets the number of tile ids, including EMPTY.
+    */
+    public int size() {
+        return size;
+    }
+
+
+    /**
+        Gets a hash of the names of the tiles in id order. Two
+        palettes with the same signature almost certainly give
+        the same tile ids to the same tiles, so tile ids stored
+        for one (like in a compiled map) can be used with the
+        other.
+    */
+    public int getSignature() {
+        int hash = size;
+        for (int i=1; i<size; i++) {
+            hash = 31 * hash +
+                (names[i] == null ? 0 : names[i].hashCode());
+            hash = 31 * hash + (solid[i] ? 1 : 0);
+        }
+        return hash;
+    }
+
+
+    /**
+        Gets the Image of the specified tile, or null for EMPTY.
+    */
+    public Image getImage(int id) {
+        return images[id];
+    }
+
+
+    /**
+        Replaces the Image of the specified tile.
+    */
+    public void setImage(int id, Image image) {
+        images[id] = image;
+    }
+
+
+    /**
+        Checks if Sprites collide with the specified tile.
+    */
+    public boolean isSolid(int id) {
+        return solid[id];
+    }
+}
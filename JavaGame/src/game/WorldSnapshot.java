@@ -0,0 +1,298 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.awt.Image;
+
+import com.brackeen.javagamebook.graphics.Sprite;
+import com.brackeen.javagamebook.tilegame.sprites.Creature;
+import com.brackeen.javagamebook.tilegame.sprites.ProjectilePool;
+
+/**
+    A WorldSnapshot is a copy of everything the renderer needs
+    from a TileMap at the end of a simulation tick: the image and
+    positions (at the start and end of the tick) of the player,
+    the sprites near the screen and the bullets, plus the health
+    and score. It also keeps references to the chunks of tiles
+    on screen, so it's a TileGrid the renderer can draw. The
+    tiles themselves aren't copied: the map never changes a
+    chunk's array (see TileMap.setTile()), so the chunks stay as
+    they were captured while the map streams, evicts and changes
+    tiles.
+    <p>
+    Snapshots are reused: capture() overwrites the previous
+    contents and only allocates when the arrays need to grow.
+*/
+public class WorldSnapshot implements TileGrid {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private int width;
+    private int height;
+    private TilePalette palette;
+    private int firstChunk;
+    private int chunkCount;
+    private short[][] chunks;
+    private long tickTime;
+
+    private Image playerImage;
+    private float playerX;
+    private float playerY;
+    private float playerPrevX;
+    private float playerPrevY;
+    private int health;
+    private int score;
+
+    private int spriteCount;
+    private Image[] spriteImages;
+    private float[] spriteX;
+    private float[] spriteY;
+    private float[] spritePrevX;
+    private float[] spritePrevY;
+
+    private ProjectilePool projectiles;
+
+    /**
+        Creates a new, empty WorldSnapshot.
+    */
+    public WorldSnapshot() {
+        chunks = new short[4][];
+        allocateSprites(INITIAL_CAPACITY);
+        projectiles = new ProjectilePool();
+    }
+
+
+    /**
+        Copies the state of the specified map, as seen on a screen
+        of the specified size. Only the sprites near the screen
+        and chunks are copied. The tickTime is the
+        System.nanoTime() at which the tick ended.
+    */
+    public void capture(TileMap map, long tickTime, int screenWidth,
+        int screenHeight)
+    {
+        width = map.getWidth();
+        height = map.getHeight();
+        palette = map.getPalette();
+        this.tickTime = tickTime;
+
+        Sprite player = map.getPlayer();
+        playerImage = player.getImage();
+        playerX = player.getX();
+        playerY = player.getY();
+        playerPrevX = player.getInterpolatedX(0);
+        playerPrevY = player.getInterpolatedY(0);
+        health = ((Creature)player).getHealth();
+        score = map.getScore();
+
+        int offsetX = TileMapRenderer.getOffsetX(playerX, map,
+            screenWidth);
+        int offsetY = TileMapRenderer.getOffsetY(map, screenHeight);
+        captureChunks(map, TileMapRenderer.getOffsetX(playerPrevX, map,
+            screenWidth), offsetX, screenWidth);
+
+        SpatialHash index = map.getSpriteIndex();
+        int count = TileMapRenderer.findVisibleSprites(map, offsetX,
+            offsetY, screenWidth, screenHeight);
+        spriteCount = 0;
+        for (int i=0; i<count; i++) {
+            Sprite sprite = index.getResult(i);
+            if (spriteCount == spriteImages.length) {
+                allocateSprites(spriteCount * 2);
+            }
+            spriteImages[spriteCount] = sprite.getImage();
+            spriteX[spriteCount] = sprite.getX();
+            spriteY[spriteCount] = sprite.getY();
+            spritePrevX[spriteCount] = sprite.getInterpolatedX(0);
+            spritePrevY[spriteCount] = sprite.getInterpolatedY(0);
+            spriteCount++;
+        }
+        // don't hold on to images from an old map
+        for (int j=spriteCount; j<spriteImages.length &&
+            spriteImages[j] != null; j++)
+        {
+            spriteImages[j] = null;
+        }
+
+        projectiles.copyFrom(map.getProjectiles());
+    }
+
+
+    /**
+        Keeps references to the chunks on screen at both the
+        start and the end of the tick, so the renderer can draw
+        any point in between.
+    */
+    private void captureChunks(TileMap map, int prevOffsetX,
+        int offsetX, int screenWidth)
+    {
+        int firstX = TileMapRenderer.pixelsToTiles(
+            -Math.max(prevOffsetX, offsetX));
+        int lastX = TileMapRenderer.pixelsToTiles(
+            screenWidth - Math.min(prevOffsetX, offsetX) - 1);
+        firstChunk = Math.max(0, firstX) >> TileMap.CHUNK_BITS;
+        int lastChunk = Math.min(width - 1, lastX) >> TileMap.CHUNK_BITS;
+        int count = Math.max(0, lastChunk - firstChunk + 1);
+        if (count > chunks.length) {
+            chunks = new short[count][];
+        }
+        for (int i=0; i<count; i++) {
+            chunks[i] = map.getChunk(firstChunk + i);
+        }
+        // don't hold on to chunks the map may have evicted
+        for (int i=count; i<chunkCount; i++) {
+            chunks[i] = null;
+        }
+        chunkCount = count;
+    }
+
+
+    private void allocateSprites(int capacity) {
+        spriteImages = (Image[])grow(spriteImages, new Image[capacity]);
+        spriteX = grow(spriteX, capacity);
+        spriteY = grow(spriteY, capacity);
+        spritePrevX = grow(spritePrevX, capacity);
+        spritePrevY = grow(spritePrevY, capacity);
+    }
+
+
+    private static Object[] grow(Object[] array, Object[] newArray) {
+        if (array != null) {
+            System.arraycopy(array, 0, newArray, 0, array.length);
+        }
+        return newArray;
+    }
+
+
+    private static float[] grow(float[] array, int capacity) {
+        float[] newArray = new float[capacity];
+        if (array != null) {
+            System.arraycopy(array, 0, newArray, 0, array.length);
+        }
+        return newArray;
+    }
+
+
+    /**
+        Checks if a map has been captured into this snapshot.
+    */
+    public boolean isCaptured() {
+        return (palette != null);
+    }
+
+
+    public int getWidth() {
+        return width;
+    }
+
+
+    public int getHeight() {
+        return height;
+    }
+
+
+    public TilePalette getPalette() {
+        return palette;
+    }
+
+
+    /**
+        Gets the id of the tile at the specified location.
+        Returns TilePalette.EMPTY if no tile is at the location,
+        if the location is out of bounds, or if the location
+        wasn't near the screen when the snapshot was captured.
+    */
+    public int getTileId(int x, int y) {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            return TilePalette.EMPTY;
+        }
+        short[] chunk = getChunk(x >> TileMap.CHUNK_BITS);
+        if (chunk == null) {
+            return TilePalette.EMPTY;
+        }
+        return chunk[(y << TileMap.CHUNK_BITS) +
+            (x & (TileMap.CHUNK_WIDTH - 1))];
+    }
+
+
+    /**
+        Gets the tile ids of a chunk, or null if the chunk wasn't
+        near the screen when the snapshot was captured.
+    */
+    public short[] getChunk(int chunk) {
+        chunk -= firstChunk;
+        if (chunk < 0 || chunk >= chunkCount) {
+            return null;
+        }
+        return chunks[chunk];
+    }
+
+
+    /**
+        Gets the System.nanoTime() at which the tick ended.
+    */
+    public long getTickTime() {
+        return tickTime;
+    }
+
+
+    /**
+        Gets how far the specified time is past the end of the
+        tick, as a fraction (0 to 1) of the tick length.
+    */
+    public float getAlpha(long time, long tickNanos) {
+        float alpha = (float)(time - tickTime) / tickNanos;
+        return Math.max(0, Math.min(alpha, 1));
+    }
+
+
+    public Image getPlayerImage() {
+        return playerImage;
+    }
+
+
+    public float getPlayerX(float alpha) {
+        return playerPrevX + (playerX - playerPrevX) * alpha;
+    }
+
+
+    public float getPlayerY(float alpha) {
+        return playerPrevY + (playerY - playerPrevY) * alpha;
+    }
+
+
+    public int getHealth() {
+        return health;
+    }
+
+
+    public int getScore() {
+        return score;
+    }
+
+
+    public int getSpriteCount() {
+        return spriteCount;
+    }
+
+
+    public Image getSpriteImage(int i) {
+        return spriteImages[i];
+    }
+
+
+    public float getSpriteX(int i, float alpha) {
+        return spritePrevX[i] + (spriteX[i] - spritePrevX[i]) * alpha;
+    }
+
+
+    public float getSpriteY(int i, float alpha) {
+        return spritePrevY[i] + (spriteY[i] - spritePrevY[i]) * alpha;
+    }
+
+
+    /**
+        Gets a copy of the map's bullets.
+    */
+    public ProjectilePool getProjectiles() {
+        return projectiles;
+    }
+}
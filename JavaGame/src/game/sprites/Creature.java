@@ -1,6 +1,5 @@
 package com.brackeen.javagamebook.tilegame.sprites;
 
-import java.lang.reflect.Constructor;
 import com.brackeen.javagamebook.graphics.*;
 
 /**
@@ -61,25 +60,6 @@ public abstract class Creature extends Sprite {
 	this.health = newHealth;
     }
 
-    public Object clone() {
-        // use reflection to create the correct subclass
-        Constructor constructor = getClass().getConstructors()[0];
-        try {
-            return constructor.newInstance(new Object[] {
-                (Animation)left.clone(),
-                (Animation)right.clone(),
-                (Animation)deadLeft.clone(),
-                (Animation)deadRight.clone()
-            });
-        }
-        catch (Exception ex) {
-            // should never happen
-            ex.printStackTrace();
-            return null;
-        }
-    }
-
-
     /**
         Gets the maximum speed of this Creature.
     */
@@ -185,6 +165,7 @@ public abstract class Creature extends Sprite {
         else {
             anim.update(elapsedTime);
         }
+        updateCollider();
 
         // update to "dead" state
         stateTime += elapsedTime;
@@ -1,6 +1,5 @@
 package com.brackeen.javagamebook.tilegame.sprites;
 
-import java.lang.reflect.Constructor;
 import com.brackeen.javagamebook.graphics.*;
 
 /**
@@ -8,24 +7,24 @@ import com.brackeen.javagamebook.graphics.*;
 */
 public abstract class PowerUp extends Sprite {
 
+    // what happens when the player picks up a PowerUp
+    public static final int EFFECT_STAR = 0;
+    public static final int EFFECT_MUSIC = 1;
+    public static final int EFFECT_GOAL = 2;
+    public static final int EFFECT_MUSHROOM = 3;
+    public static final int EFFECT_EXPLODE = 4;
+    public static final int EFFECT_GAS = 5;
+
     public PowerUp(Animation anim) {
         super(anim);
     }
 
 
-    public Object clone() {
-        // use reflection to create the correct subclass
-        Constructor constructor = getClass().getConstructors()[0];
-        try {
-            return constructor.newInstance(
-                new Object[] {(Animation)anim.clone()});
-        }
-        catch (Exception ex) {
-            // should never happen
-            ex.printStackTrace();
-            return null;
-        }
-    }
+    /**
+        Gets what happens when the player picks up this PowerUp,
+        one of the EFFECT constants.
+    */
+    public abstract int getEffect();
 
 
     /**
@@ -35,6 +34,10 @@ public abstract class PowerUp extends Sprite {
         public Star(Animation anim) {
             super(anim);
         }
+
+        public int getEffect() {
+            return EFFECT_STAR;
+        }
     }
 
 
@@ -45,6 +48,10 @@ public abstract class PowerUp extends Sprite {
         public Music(Animation anim) {
             super(anim);
         }
+
+        public int getEffect() {
+            return EFFECT_MUSIC;
+        }
     }
 
 
@@ -55,6 +62,10 @@ public abstract class PowerUp extends Sprite {
         public Goal(Animation anim) {
             super(anim);
         }
+
+        public int getEffect() {
+            return EFFECT_GOAL;
+        }
     }
 
     /** 
@@ -64,18 +75,30 @@ public abstract class PowerUp extends Sprite {
 	public Mushroom(Animation anim){
 	    super(anim);
 	}
+
+	public int getEffect() {
+	    return EFFECT_MUSHROOM;
+	}
     }
 
     public static class Explode extends PowerUp{
 	public Explode(Animation anim){
 		super(anim);
 	}
+
+	public int getEffect() {
+		return EFFECT_EXPLODE;
+	}
     }
 
     public static class Gas extends PowerUp{
 	public Gas(Animation anim){
 	    super(anim);
 	}
+
+	public int getEffect() {
+	    return EFFECT_GAS;
+	}
     }
 
 }
@@ -0,0 +1,239 @@
+package com.brackeen.javagamebook.tilegame.sprites;
+
+/**
+    The ProjectilePool holds every bullet in a map, fired by the
+    player or by enemies. Instead of one object per bullet, the
+    position, velocity, lifetime and owner of each bullet are
+    stored in parallel primitive arrays, packed so that bullets
+    0 to size()-1 are live.
+    <p>
+    Spawning appends to the end of the arrays and despawning
+    moves the last bullet into the freed slot, so both take
+    constant time, and nothing is allocated unless the pool has
+    to grow. Because despawn() reorders bullets, loops that
+    despawn should run from the last bullet down to the first.
+*/
+public class ProjectilePool {
+
+    public static final int OWNER_PLAYER = 0;
+    public static final int OWNER_ENEMY = 1;
+
+    /**
+        Bullet speed in pixels per millisecond.
+    */
+    public static final float SPEED = 1;
+
+    private static final int DEFAULT_CAPACITY = 256;
+
+    private int size;
+    // position (pixels)
+    private float[] x;
+    private float[] y;
+    // x position at the start of the current tick
+    private float[] prevX;
+    // velocity (pixels per millisecond); bullets fly level
+    private float[] dx;
+    // time alive (milliseconds)
+    private long[] life;
+    private byte[] owner;
+
+    /**
+        Creates a new ProjectilePool with the default capacity.
+    */
+    public ProjectilePool() {
+        this(DEFAULT_CAPACITY);
+    }
+
+
+    /**
+        Creates a new ProjectilePool with room for the specified
+        number of bullets before it has to grow.
+    */
+    public ProjectilePool(int capacity) {
+        capacity = Math.max(1, capacity);
+        x = new float[capacity];
+        y = new float[capacity];
+        prevX = new float[capacity];
+        dx = new float[capacity];
+        life = new long[capacity];
+        owner = new byte[capacity];
+    }
+
+
+    /**
+        Spawns a bullet at the specified position, flying left
+        (direction -1) or right (direction 1). Returns its index.
+    */
+    public int spawn(float x, float y, int direction, int owner) {
+        if (size == this.x.length) {
+            grow(size * 2);
+        }
+        int i = size++;
+        this.x[i] = x;
+        this.y[i] = y;
+        this.prevX[i] = x;
+        this.dx[i] = direction * SPEED;
+        this.life[i] = 0;
+        this.owner[i] = (byte)owner;
+        return i;
+    }
+
+
+    /**
+        Removes the bullet at the specified index. The last
+        bullet is moved into its place.
+    */
+    public void despawn(int i) {
+        int last = --size;
+        if (i != last) {
+            x[i] = x[last];
+            y[i] = y[last];
+            prevX[i] = prevX[last];
+            dx[i] = dx[last];
+            life[i] = life[last];
+            owner[i] = owner[last];
+        }
+    }
+
+
+    /**
+        Makes this pool a copy of another pool's bullets.
+    */
+    public void copyFrom(ProjectilePool pool) {
+        if (pool.size > x.length) {
+            size = 0;
+            grow(pool.x.length);
+        }
+        size = pool.size;
+        System.arraycopy(pool.x, 0, x, 0, size);
+        System.arraycopy(pool.y, 0, y, 0, size);
+        System.arraycopy(pool.prevX, 0, prevX, 0, size);
+        System.arraycopy(pool.dx, 0, dx, 0, size);
+        System.arraycopy(pool.life, 0, life, 0, size);
+        System.arraycopy(pool.owner, 0, owner, 0, size);
+    }
+
+
+    /**
+        Removes every bullet.
+    */
+    public void clear() {
+        size = 0;
+    }
+
+
+    /**
+        Gets the number of live bullets.
+    */
+    public int size() {
+        return size;
+    }
+
+
+    /**
+        Moves every bullet and adds to its lifetime.
+    */
+    public void update(long elapsedTime) {
+        for (int i=0; i<size; i++) {
+            x[i] += dx[i] * elapsedTime;
+            life[i] += elapsedTime;
+        }
+    }
+
+
+    /**
+        Saves the position of every bullet at the start of a
+        simulation tick, for interpolated drawing.
+    */
+    public void savePositions() {
+        System.arraycopy(x, 0, prevX, 0, size);
+    }
+
+
+    public float getX(int i) {
+        return x[i];
+    }
+
+
+    public float getY(int i) {
+        return y[i];
+    }
+
+
+    /**
+        Gets the x position of a bullet blended between the start
+        and the end of the last tick.
+    */
+    public float getInterpolatedX(int i, float alpha) {
+        return prevX[i] + (x[i] - prevX[i]) * alpha;
+    }
+
+
+    public long getLife(int i) {
+        return life[i];
+    }
+
+
+    public int getOwner(int i) {
+        return owner[i];
+    }
+
+
+    /**
+        Gets the array of x positions. Only the first size()
+        entries are valid, and the array is replaced if the pool
+        grows.
+    */
+    public float[] getXArray() {
+        return x;
+    }
+
+
+    /**
+        Gets the array of y positions. Only the first size()
+        entries are valid, and the array is replaced if the pool
+        grows.
+    */
+    public float[] getYArray() {
+        return y;
+    }
+
+
+    /**
+        Gets the array of start-of-tick x positions. Only the
+        first size() entries are valid.
+    */
+    public float[] getPrevXArray() {
+        return prevX;
+    }
+
+
+    /**
+        Gets the array of owners. Only the first size() entries
+        are valid.
+    */
+    public byte[] getOwnerArray() {
+        return owner;
+    }
+
+
+    private void grow(int capacity) {
+        x = grow(x, capacity);
+        y = grow(y, capacity);
+        prevX = grow(prevX, capacity);
+        dx = grow(dx, capacity);
+        long[] newLife = new long[capacity];
+        System.arraycopy(life, 0, newLife, 0, size);
+        life = newLife;
+        byte[] newOwner = new byte[capacity];
+        System.arraycopy(owner, 0, newOwner, 0, size);
+        owner = newOwner;
+    }
+
+
+    private float[] grow(float[] array, int capacity) {
+        float[] newArray = new float[capacity];
+        System.arraycopy(array, 0, newArray, 0, size);
+        return newArray;
+    }
+}
@@ -1,63 +1,119 @@
 package com.brackeen.javagamebook.graphics;
 
 import java.awt.Image;
-import java.util.ArrayList;
 
 /**
-    The Animation class manages a series of images (frames) and
-    the amount of time to display each frame.
+    The Animation class plays an AnimationTimeline, a series of
+    images (frames) and the amount of time to display each frame.
+    The timeline can be shared by any number of Animations; an
+    Animation only keeps how far into it it is.
+    <p>
+    An Animation can also follow an AnimationClock instead of
+    keeping its own time. Then updating it does nothing; the
+    clock is updated once for all its Animations, and Animations
+    of the same timeline show the same frame unless they were
+    started at different times, in which case they play one of
+    the clock's phases of the timeline.
+    <p>
+    An Animation belongs to one Sprite and is only used by the
+    thread that updates it.
 */
 public class Animation {
 
-    private ArrayList frames;
+    private AnimationTimeline timeline;
     private int currFrameIndex;
     private long animTime;
-    private long totalDuration;
+    private AnimationClock clock;
+    // the timeline's first slot on the clock, and the slot played
+    private int firstSlot;
+    private int slot;
 
 
     /**
         Creates a new, empty Animation.
     */
     public Animation() {
-        this(new ArrayList(), 0);
+        this(AnimationTimeline.EMPTY);
     }
 
 
-    private Animation(ArrayList frames, long totalDuration) {
-        this.frames = frames;
-        this.totalDuration = totalDuration;
+    /**
+        Creates a new Animation that plays the specified
+        timeline.
+    */
+    public Animation(AnimationTimeline timeline) {
+        this.timeline = timeline;
         start();
     }
 
 
     /**
-        Creates a duplicate of this animation. The list of frames
-        are shared between the two Animations, but each Animation
-        can be animated independently.
+        Creates a duplicate of this animation. The timeline is
+        shared between the two Animations, but each Animation
+        can be animated independently. If this Animation follows
+        a clock, the duplicate follows it too, in step with it.
     */
     public Object clone() {
-        return new Animation(frames, totalDuration);
+        Animation anim = new Animation(timeline);
+        anim.clock = clock;
+        anim.firstSlot = firstSlot;
+        anim.slot = firstSlot;
+        return anim;
     }
 
 
     /**
         Adds an image to the animation with the specified
-        duration (time to display the image).
+        duration (time to display the image). Animations already
+        cloned from this one aren't changed. Add every frame
+        before calling setClock(), since every timeline given to a
+        clock stays in its table.
     */
-    public synchronized void addFrame(Image image,
-        long duration)
-    {
-        totalDuration += duration;
-        frames.add(new AnimFrame(image, totalDuration));
+    public void addFrame(Image image, long duration) {
+        timeline = timeline.addFrame(image, duration);
+        if (clock != null) {
+            firstSlot = clock.register(timeline);
+            slot = firstSlot;
+        }
     }
 
 
     /**
-        Starts this animation over from the beginning.
+        Makes this Animation follow the specified clock, in step
+        with the other Animations of its timeline on the clock.
+        If the clock is null, this Animation keeps its own time
+        again, starting over.
     */
-    public synchronized void start() {
+    public void setClock(AnimationClock clock) {
+        this.clock = clock;
         animTime = 0;
         currFrameIndex = 0;
+        if (clock != null) {
+            firstSlot = clock.register(timeline);
+            slot = firstSlot;
+        }
+    }
+
+
+    /**
+        Gets the timeline this Animation plays.
+    */
+    public AnimationTimeline getTimeline() {
+        return timeline;
+    }
+
+
+    /**
+        Starts this animation over from the beginning. An
+        Animation that follows a clock switches to the clock's
+        phase of its timeline that starts closest to now.
+    */
+    public void start() {
+        animTime = 0;
+        currFrameIndex = 0;
+        if (clock != null) {
+            slot = clock.getStartSlot(firstSlot);
+        }
     }
 
 
@@ -65,18 +121,20 @@ public class Animation {
         Updates this animation's current image (frame), if
         neccesary.
     */
-    public synchronized void update(long elapsedTime) {
-        if (frames.size() > 1) {
+    public void update(long elapsedTime) {
+        if (clock != null) {
+            // the clock is updated instead
+            return;
+        }
+        long totalDuration = timeline.getTotalDuration();
+        if (timeline.getNumFrames() > 1 && totalDuration > 0) {
             animTime += elapsedTime;
 
             if (animTime >= totalDuration) {
                 animTime = animTime % totalDuration;
-                currFrameIndex = 0;
             }
 
-            while (animTime > getFrame(currFrameIndex).endTime) {
-                currFrameIndex++;
-            }
+            currFrameIndex = timeline.getFrame(animTime);
         }
     }
 
@@ -85,29 +143,15 @@ public class Animation {
         Gets this Animation's current image. Returns null if this
         animation has no images.
     */
-    public synchronized Image getImage() {
-        if (frames.size() == 0) {
+    public Image getImage() {
+        if (timeline.getNumFrames() == 0) {
             return null;
         }
-        else {
-            return getFrame(currFrameIndex).image;
+        else if (clock == null) {
+            return timeline.getImage(currFrameIndex);
         }
-    }
-
-
-    private AnimFrame getFrame(int i) {
-        return (AnimFrame)frames.get(i);
-    }
-
-
-    private class AnimFrame {
-
-        Image image;
-        long endTime;
-
-        public AnimFrame(Image image, long endTime) {
-            this.image = image;
-            this.endTime = endTime;
+        else {
+            return timeline.getImage(clock.getFrame(slot));
         }
     }
 }
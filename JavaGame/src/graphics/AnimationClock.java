@@ -0,0 +1,129 @@
+package com.brackeen.javagamebook.graphics;
+
+/**
+    An AnimationClock keeps the time for every Animation that
+    uses it, so the Animations don't have to be updated one by
+    one. The current frame of each AnimationTimeline played by
+    the clock is found once per update and kept in a table, and
+    Animations just read it from there.
+    <p>
+    Each timeline has PHASES slots in the table, for Animations
+    started at different times: slot k plays the timeline k
+    PHASES-ths of its duration ahead of the clock. An Animation
+    started at any time takes the slot whose phase is nearest, so
+    it starts within half a phase step of its first frame.
+*/
+public class AnimationClock {
+
+    /**
+        The number of phases of each timeline.
+    */
+    public static final int PHASES = 8;
+
+    private long time;
+    private AnimationTimeline[] timelines;
+    private long[] phases;
+    private int[] frames;
+    private int size;
+
+    /**
+        Creates a new AnimationClock at time 0.
+    */
+    public AnimationClock() {
+        timelines = new AnimationTimeline[PHASES * 4];
+        phases = new long[PHASES * 4];
+        frames = new int[PHASES * 4];
+    }
+
+
+    /**
+        Advances this clock and finds the current frame of each
+        timeline it plays, in each phase.
+    */
+    public void update(long elapsedTime) {
+        time += elapsedTime;
+        for (int i=0; i<size; i++) {
+            frames[i] = getFrame(timelines[i], phases[i]);
+        }
+    }
+
+
+    /**
+        Gets the time of this clock (in milliseconds).
+    */
+    public long getTime() {
+        return time;
+    }
+
+
+    /**
+        Adds a timeline to the table of timelines this clock
+        plays, if it isn't there already. Returns its first slot
+        in the table, the slot in step with the clock; slots
+        first+1 to first+PHASES-1 hold its other phases.
+    */
+    public int register(AnimationTimeline timeline) {
+        for (int i=0; i<size; i+=PHASES) {
+            if (timelines[i] == timeline) {
+                return i;
+            }
+        }
+        if (size == timelines.length) {
+            AnimationTimeline[] newTimelines =
+                new AnimationTimeline[size * 2];
+            long[] newPhases = new long[size * 2];
+            int[] newFrames = new int[size * 2];
+            System.arraycopy(timelines, 0, newTimelines, 0, size);
+            System.arraycopy(phases, 0, newPhases, 0, size);
+            System.arraycopy(frames, 0, newFrames, 0, size);
+            timelines = newTimelines;
+            phases = newPhases;
+            frames = newFrames;
+        }
+        int first = size;
+        for (int k=0; k<PHASES; k++) {
+            timelines[size] = timeline;
+            phases[size] = timeline.getTotalDuration() * k / PHASES;
+            frames[size] = getFrame(timeline, phases[size]);
+            size++;
+        }
+        return first;
+    }
+
+
+    /**
+        Gets the slot of the phase of a timeline, registered at
+        the specified first slot, that starts from its first frame
+        closest to now.
+    */
+    public int getStartSlot(int first) {
+        long totalDuration = timelines[first].getTotalDuration();
+        if (totalDuration <= 0) {
+            return first;
+        }
+        // the phase that would start the timeline exactly now
+        long phase = (totalDuration - time % totalDuration) %
+            totalDuration;
+        int k = (int)((phase * PHASES + totalDuration / 2) /
+            totalDuration);
+        return first + k % PHASES;
+    }
+
+
+    /**
+        Gets the current frame of the timeline in a slot of the
+        table.
+    */
+    public int getFrame(int slot) {
+        return frames[slot];
+    }
+
+
+    private int getFrame(AnimationTimeline timeline, long phase) {
+        long totalDuration = timeline.getTotalDuration();
+        if (timeline.getNumFrames() <= 1 || totalDuration <= 0) {
+            return 0;
+        }
+        return timeline.getFrame((time + phase) % totalDuration);
+    }
+}
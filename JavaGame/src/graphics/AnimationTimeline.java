@@ -0,0 +1,127 @@
+package com.brackeen.javagamebook.graphics;
+
+import java.awt.Image;
+
+/**
+    An AnimationTimeline is the series of images (frames) of an
+    animation and the amount of time to display each frame. A
+    timeline never changes once it's created, so any number of
+    Animations can play it at once.
+    <p>
+    The frame shown at any time is found with a lookup table: the
+    timeline is split into equal buckets of time, and the table
+    holds the frame each bucket starts with. Buckets are no longer
+    than the shortest frame (unless that would make the table too
+    big), so the frame is either that one or the next.
+*/
+public class AnimationTimeline {
+
+    /**
+        A timeline with no frames.
+    */
+    public static final AnimationTimeline EMPTY =
+        new AnimationTimeline(new Image[0], new long[0]);
+
+    // the most buckets in a lookup table
+    private static final int MAX_BUCKETS = 1024;
+
+    private Image[] images;
+    private long[] endTimes;
+    private long totalDuration;
+    private long bucketSize;
+    private int[] buckets;
+
+    /**
+        Creates a new AnimationTimeline with the specified images,
+        each displayed for the matching duration (in
+        milliseconds).
+    */
+    public AnimationTimeline(Image[] images, long[] durations) {
+        int numFrames = images.length;
+        this.images = new Image[numFrames];
+        System.arraycopy(images, 0, this.images, 0, numFrames);
+        endTimes = new long[numFrames];
+        long shortest = Long.MAX_VALUE;
+        for (int i=0; i<numFrames; i++) {
+            totalDuration += durations[i];
+            endTimes[i] = totalDuration;
+            if (durations[i] > 0) {
+                shortest = Math.min(shortest, durations[i]);
+            }
+        }
+
+        if (totalDuration > 0) {
+            bucketSize = Math.max(shortest,
+                (totalDuration + MAX_BUCKETS - 1) / MAX_BUCKETS);
+            buckets = new int[(int)((totalDuration + bucketSize - 1) /
+                bucketSize)];
+            int frame = 0;
+            for (int i=0; i<buckets.length; i++) {
+                while (i * bucketSize > endTimes[frame]) {
+                    frame++;
+                }
+                buckets[i] = frame;
+            }
+        }
+    }
+
+
+    /**
+        Creates a new timeline with the frames of this one plus
+        the specified image, displayed for the specified duration,
+        at the end.
+    */
+    public AnimationTimeline addFrame(Image image, long duration) {
+        int numFrames = images.length;
+        Image[] newImages = new Image[numFrames + 1];
+        long[] durations = new long[numFrames + 1];
+        long startTime = 0;
+        for (int i=0; i<numFrames; i++) {
+            newImages[i] = images[i];
+            durations[i] = endTimes[i] - startTime;
+            startTime = endTimes[i];
+        }
+        newImages[numFrames] = image;
+        durations[numFrames] = duration;
+        return new AnimationTimeline(newImages, durations);
+    }
+
+
+    /**
+        Gets the number of frames in this timeline.
+    */
+    public int getNumFrames() {
+        return images.length;
+    }
+
+
+    /**
+        Gets the total duration of this timeline (in
+        milliseconds).
+    */
+    public long getTotalDuration() {
+        return totalDuration;
+    }
+
+
+    /**
+        Gets the image of a frame.
+    */
+    public Image getImage(int frame) {
+        return images[frame];
+    }
+
+
+    /**
+        Gets the frame displayed at the specified time, which
+        must be at least 0 and less than the total duration. A
+        frame is displayed up to and including its end time.
+    */
+    public int getFrame(long time) {
+        int frame = buckets[(int)(time / bucketSize)];
+        while (time > endTimes[frame]) {
+            frame++;
+        }
+        return frame;
+    }
+}
@@ -0,0 +1,69 @@
+package com.brackeen.javagamebook.graphics;
+
+import java.awt.Graphics;
+import java.awt.Image;
+
+/**
+    An AtlasRegion is the rectangle of a TextureAtlas page that
+    holds one packed image.
+*/
+public class AtlasRegion {
+
+    private Image page;
+    private int x;
+    private int y;
+    private int width;
+    private int height;
+
+    /**
+        Creates a new AtlasRegion for the specified rectangle of
+        an atlas page.
+    */
+    public AtlasRegion(Image page, int x, int y, int width,
+        int height)
+    {
+        this.page = page;
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+    }
+
+
+    /**
+        Gets the atlas page this region is on.
+    */
+    public Image getPage() {
+        return page;
+    }
+
+
+    public int getX() {
+        return x;
+    }
+
+
+    public int getY() {
+        return y;
+    }
+
+
+    public int getWidth() {
+        return width;
+    }
+
+
+    public int getHeight() {
+        return height;
+    }
+
+
+    /**
+        Draws this region with its top left corner at the
+        specified location.
+    */
+    public void draw(Graphics g, int dx, int dy) {
+        g.drawImage(page, dx, dy, dx + width, dy + height,
+            x, y, x + width, y + height, null);
+    }
+}
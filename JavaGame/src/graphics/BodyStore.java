@@ -0,0 +1,199 @@
+package com.brackeen.javagamebook.graphics;
+
+/**
+    A BodyStore holds the bodies of many Sprites in parallel
+    primitive arrays, one slot per Sprite: position, velocity,
+    the position saved at the start of the tick, and the size of
+    the collider. A Sprite attached to a slot reads and writes its
+    body there, so a system can loop over the arrays of every
+    Sprite without touching the Sprite objects.
+    <p>
+    The arrays are replaced when the store grows, so get them
+    again after adding Sprites.
+    <p>
+    The store also lists the slots whose position has changed
+    since the last call to clearMoved(), so a system that only
+    cares about Sprites that moved (like the spatial index) can
+    skip the others.
+*/
+public class BodyStore {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    // position (pixels)
+    float[] x;
+    float[] y;
+    // velocity (pixels per millisecond)
+    float[] dx;
+    float[] dy;
+    // position at the start of the current tick (pixels)
+    float[] prevX;
+    float[] prevY;
+    // size of the collider (pixels)
+    int[] width;
+    int[] height;
+    // slots moved since the last clearMoved(), each listed once
+    private int[] moved;
+    private boolean[] movedFlags;
+    private int numMoved;
+
+    /**
+        Creates a new, empty BodyStore.
+    */
+    public BodyStore() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+
+    /**
+        Makes room for slots 0 to capacity-1.
+    */
+    public void ensureCapacity(int capacity) {
+        if (capacity <= x.length) {
+            return;
+        }
+        float[] oldX = x;
+        float[] oldY = y;
+        float[] oldDx = dx;
+        float[] oldDy = dy;
+        float[] oldPrevX = prevX;
+        float[] oldPrevY = prevY;
+        int[] oldWidth = width;
+        int[] oldHeight = height;
+        int[] oldMoved = moved;
+        boolean[] oldMovedFlags = movedFlags;
+        int size = oldX.length;
+        allocate(Math.max(capacity, size * 2));
+        System.arraycopy(oldX, 0, x, 0, size);
+        System.arraycopy(oldY, 0, y, 0, size);
+        System.arraycopy(oldDx, 0, dx, 0, size);
+        System.arraycopy(oldDy, 0, dy, 0, size);
+        System.arraycopy(oldPrevX, 0, prevX, 0, size);
+        System.arraycopy(oldPrevY, 0, prevY, 0, size);
+        System.arraycopy(oldWidth, 0, width, 0, size);
+        System.arraycopy(oldHeight, 0, height, 0, size);
+        System.arraycopy(oldMoved, 0, moved, 0, numMoved);
+        System.arraycopy(oldMovedFlags, 0, movedFlags, 0, size);
+    }
+
+
+    private void allocate(int capacity) {
+        x = new float[capacity];
+        y = new float[capacity];
+        dx = new float[capacity];
+        dy = new float[capacity];
+        prevX = new float[capacity];
+        prevY = new float[capacity];
+        width = new int[capacity];
+        height = new int[capacity];
+        moved = new int[capacity];
+        movedFlags = new boolean[capacity];
+    }
+
+
+    /**
+        Adds a slot to the list of moved slots, if it isn't
+        listed yet. Sprites do this themselves when their position
+        is set; call it after changing the position arrays
+        directly.
+    */
+    public void markMoved(int slot) {
+        if (!movedFlags[slot]) {
+            movedFlags[slot] = true;
+            moved[numMoved++] = slot;
+        }
+    }
+
+
+    /**
+        Gets the array of slots moved since the last call to
+        clearMoved(). Only the first getMovedCount() are valid.
+    */
+    public int[] getMovedArray() {
+        return moved;
+    }
+
+
+    /**
+        Gets the number of slots moved since the last call to
+        clearMoved().
+    */
+    public int getMovedCount() {
+        return numMoved;
+    }
+
+
+    /**
+        Empties the list of moved slots.
+    */
+    public void clearMoved() {
+        for (int i=0; i<numMoved; i++) {
+            movedFlags[moved[i]] = false;
+        }
+        numMoved = 0;
+    }
+
+
+    /**
+        Gets the array of x positions, by slot.
+    */
+    public float[] getXArray() {
+        return x;
+    }
+
+
+    /**
+        Gets the array of y positions, by slot.
+    */
+    public float[] getYArray() {
+        return y;
+    }
+
+
+    /**
+        Gets the array of horizontal velocities, by slot.
+    */
+    public float[] getVelocityXArray() {
+        return dx;
+    }
+
+
+    /**
+        Gets the array of vertical velocities, by slot.
+    */
+    public float[] getVelocityYArray() {
+        return dy;
+    }
+
+
+    /**
+        Gets the array of start-of-tick x positions, by slot.
+    */
+    public float[] getPrevXArray() {
+        return prevX;
+    }
+
+
+    /**
+        Gets the array of start-of-tick y positions, by slot.
+    */
+    public float[] getPrevYArray() {
+        return prevY;
+    }
+
+
+    /**
+        Gets the array of collider widths, by slot.
+    */
+    public int[] getWidthArray() {
+        return width;
+    }
+
+
+    /**
+        Gets the array of collider heights, by slot.
+    */
+    public int[] getHeightArray() {
+        return height;
+    }
+}
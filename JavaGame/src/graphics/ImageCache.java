@@ -0,0 +1,157 @@
+package com.brackeen.javagamebook.graphics;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+    The ImageCache keeps images in a directory on disk as raw
+    ARGB pixels, so reading one back is a file read instead of
+    decoding or drawing. Images are stored under a key; keys
+    should include a hash of everything the image is made from
+    (see hashFile()), so a changed source image gets a new key
+    and the old entry is simply never read again.
+*/
+public class ImageCache {
+
+    private static final int MAGIC = 0x49434831; // "ICH1"
+    private static final int HEADER_SIZE = 12;
+
+    private File dir;
+
+    /**
+        Creates a new ImageCache that stores images in the
+        specified directory. The directory is created when the
+        first image is stored.
+    */
+    public ImageCache(File dir) {
+        this.dir = dir;
+    }
+
+
+    /**
+        Gets a hex string of the SHA-1 hash of a file's contents.
+    */
+    public static String hashFile(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        }
+        catch (NoSuchAlgorithmException ex) {
+            // every Java platform has SHA-1
+            throw new IOException(ex.toString());
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        finally {
+            in.close();
+        }
+
+        byte[] hash = digest.digest();
+        StringBuffer hex = new StringBuffer(hash.length * 2);
+        for (int i=0; i<hash.length; i++) {
+            hex.append(Character.forDigit((hash[i] >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(hash[i] & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+
+    /**
+        Gets the image stored under a key as an ARGB
+        BufferedImage, or null if there isn't one (or it can't be
+        read).
+    */
+    public BufferedImage get(String key) {
+        File file = getFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            byte[] data = new byte[(int)file.length()];
+            DataInputStream in = new DataInputStream(
+                new FileInputStream(file));
+            try {
+                in.readFully(data);
+            }
+            finally {
+                in.close();
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            int width = buffer.getInt(4);
+            int height = buffer.getInt(8);
+            if (buffer.getInt(0) != MAGIC || width <= 0 || height <= 0 ||
+                data.length != HEADER_SIZE + 4L * width * height)
+            {
+                return null;
+            }
+            BufferedImage image = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_ARGB);
+            int[] pixels = ((DataBufferInt)image.getRaster().
+                getDataBuffer()).getData();
+            buffer.position(HEADER_SIZE);
+            buffer.asIntBuffer().get(pixels);
+            return image;
+        }
+        catch (IOException ex) {
+            return null;
+        }
+    }
+
+
+    /**
+        Stores an image under a key. Errors are printed, since a
+        missing cache entry only means the image is made again
+        next time.
+    */
+    public void put(String key, BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = image.getRGB(0, 0, width, height, null, 0,
+            width);
+        ByteBuffer buffer = ByteBuffer.allocate(
+            HEADER_SIZE + 4 * pixels.length);
+        buffer.putInt(MAGIC);
+        buffer.putInt(width);
+        buffer.putInt(height);
+        buffer.asIntBuffer().put(pixels);
+
+        // write to a temporary file first, so a half written
+        // entry is never read
+        File file = getFile(key);
+        File tempFile = new File(dir, key + "." +
+            Thread.currentThread().getName() + ".tmp");
+        try {
+            dir.mkdirs();
+            OutputStream out = new FileOutputStream(tempFile);
+            try {
+                out.write(buffer.array());
+            }
+            finally {
+                out.close();
+            }
+            file.delete();
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+            }
+        }
+        catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+
+    private File getFile(String key) {
+        return new File(dir, key + ".argb");
+    }
+}
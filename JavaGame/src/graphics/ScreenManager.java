@@ -168,9 +168,19 @@ public class ScreenManager {
 
 
     /**
-        Updates the display.
+        Updates the display. Same as calling show() followed by
+        sync().
     */
     public void update() {
+        show();
+        sync();
+    }
+
+
+    /**
+        Shows the back buffer.
+    */
+    public void show() {
         Window window = device.getFullScreenWindow();
         if (window != null) {
             BufferStrategy strategy = window.getBufferStrategy();
@@ -178,8 +188,30 @@ public class ScreenManager {
                 strategy.show();
             }
         }
-        // Sync the display on some systems.
-        // (on Linux, this fixes event queue problems)
+    }
+
+
+    /**
+        Checks if show() waits for the display's vertical blank,
+        which is the case when the full screen window's
+        BufferStrategy flips pages.
+    */
+    public boolean isShowSynced() {
+        Window window = device.getFullScreenWindow();
+        if (window != null) {
+            BufferStrategy strategy = window.getBufferStrategy();
+            return (strategy != null &&
+                strategy.getCapabilities().isPageFlipping());
+        }
+        return false;
+    }
+
+
+    /**
+        Syncs the display on some systems.
+        (on Linux, this fixes event queue problems)
+    */
+    public void sync() {
         Toolkit.getDefaultToolkit().sync();
     }
 
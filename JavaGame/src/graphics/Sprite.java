@@ -11,6 +11,14 @@ public class Sprite {
     // velocity (pixels per millisecond)
     private float dx;
     private float dy;
+    // position at the start of the current tick (pixels)
+    private float prevX;
+    private float prevY;
+    // the slot holding the body instead, if attached
+    private BodyStore bodies;
+    private int body;
+    // id of this Sprite's entity, or -1 if it has none
+    private int entity = -1;
 
     /**
         Creates a new Sprite object with the specified Animation.
@@ -24,37 +32,149 @@ public class Sprite {
         on the velocity.
     */
     public void update(long elapsedTime) {
-        x += dx * elapsedTime;
-        y += dy * elapsedTime;
+        setX(getX() + getVelocityX() * elapsedTime);
+        setY(getY() + getVelocityY() * elapsedTime);
+        updateAnimation(elapsedTime);
+    }
+
+    /**
+        Updates this Sprite's Animation only, for a Sprite whose
+        position is updated by someone else.
+    */
+    public void updateAnimation(long elapsedTime) {
         anim.update(elapsedTime);
+        updateCollider();
+    }
+
+    /**
+        Keeps this Sprite's body in a slot of a BodyStore instead
+        of in this Sprite. The current body is copied into the
+        slot.
+    */
+    public void attach(BodyStore bodies, int body) {
+        bodies.x[body] = x;
+        bodies.y[body] = y;
+        bodies.dx[body] = dx;
+        bodies.dy[body] = dy;
+        bodies.prevX[body] = prevX;
+        bodies.prevY[body] = prevY;
+        this.bodies = bodies;
+        this.body = body;
+        updateCollider();
+    }
+
+    /**
+        Copies this Sprite's body back from its BodyStore slot,
+        if it's attached to one, and keeps it here again.
+    */
+    public void detach() {
+        if (bodies != null) {
+            x = bodies.x[body];
+            y = bodies.y[body];
+            dx = bodies.dx[body];
+            dy = bodies.dy[body];
+            prevX = bodies.prevX[body];
+            prevY = bodies.prevY[body];
+            bodies = null;
+        }
+    }
+
+    /**
+        Stores the size of the current image as the size of the
+        collider in the BodyStore, if this Sprite is attached to
+        one. Call after the image may have changed.
+    */
+    protected void updateCollider() {
+        Image image = anim.getImage();
+        if (bodies != null && image != null) {
+            bodies.width[body] = image.getWidth(null);
+            bodies.height[body] = image.getHeight(null);
+        }
     }
 
     /**
         Gets this Sprite's current x position.
     */
     public float getX() {
-        return x;
+        return (bodies != null) ? bodies.x[body] : x;
     }
 
     /**
         Gets this Sprite's current y position.
     */
     public float getY() {
-        return y;
+        return (bodies != null) ? bodies.y[body] : y;
     }
 
     /**
         Sets this Sprite's current x position.
     */
     public void setX(float x) {
-        this.x = x;
+        if (bodies != null) {
+            if (bodies.x[body] != x) {
+                bodies.x[body] = x;
+                bodies.markMoved(body);
+            }
+        }
+        else {
+            this.x = x;
+        }
     }
 
     /**
         Sets this Sprite's current y position.
     */
     public void setY(float y) {
-        this.y = y;
+        if (bodies != null) {
+            if (bodies.y[body] != y) {
+                bodies.y[body] = y;
+                bodies.markMoved(body);
+            }
+        }
+        else {
+            this.y = y;
+        }
+    }
+
+    /**
+        Remembers the current position as the position at the
+        start of a simulation tick. Used by getInterpolatedX()
+        and getInterpolatedY().
+    */
+    public void savePosition() {
+        if (bodies != null) {
+            bodies.prevX[body] = bodies.x[body];
+            bodies.prevY[body] = bodies.y[body];
+        }
+        else {
+            prevX = x;
+            prevY = y;
+        }
+    }
+
+    /**
+        Gets the x position blended between the position saved by
+        savePosition() and the current position. An alpha of 0
+        is the saved position, 1 is the current position.
+    */
+    public float getInterpolatedX(float alpha) {
+        if (bodies != null) {
+            float prevX = bodies.prevX[body];
+            return prevX + (bodies.x[body] - prevX) * alpha;
+        }
+        return prevX + (x - prevX) * alpha;
+    }
+
+    /**
+        Gets the y position blended between the position saved by
+        savePosition() and the current position.
+    */
+    public float getInterpolatedY(float alpha) {
+        if (bodies != null) {
+            float prevY = bodies.prevY[body];
+            return prevY + (bodies.y[body] - prevY) * alpha;
+        }
+        return prevY + (y - prevY) * alpha;
     }
 
     /**
@@ -78,7 +198,7 @@ public class Sprite {
         per millisecond.
     */
     public float getVelocityX() {
-        return dx;
+        return (bodies != null) ? bodies.dx[body] : dx;
     }
 
     /**
@@ -86,7 +206,7 @@ public class Sprite {
         per millisecond.
     */
     public float getVelocityY() {
-        return dy;
+        return (bodies != null) ? bodies.dy[body] : dy;
     }
 
     /**
@@ -94,7 +214,12 @@ public class Sprite {
         per millisecond.
     */
     public void setVelocityX(float dx) {
-        this.dx = dx;
+        if (bodies != null) {
+            bodies.dx[body] = dx;
+        }
+        else {
+            this.dx = dx;
+        }
     }
 
     /**
@@ -102,21 +227,33 @@ public class Sprite {
         per millisecond.
     */
     public void setVelocityY(float dy) {
-        this.dy = dy;
+        if (bodies != null) {
+            bodies.dy[body] = dy;
+        }
+        else {
+            this.dy = dy;
+        }
     }
 
     /**
-        Gets this Sprite's current image.
+        Gets the id of the entity this Sprite belongs to, or -1
+        if it doesn't belong to one.
     */
-    public Image getImage() {
-        return anim.getImage();
+    public int getEntity() {
+        return entity;
     }
 
     /**
-        Clones this Sprite. Does not clone position or velocity
-        info.
+        Sets the id of the entity this Sprite belongs to.
     */
-    public Object clone() {
-        return new Sprite(anim);
+    public void setEntity(int entity) {
+        this.entity = entity;
+    }
+
+    /**
+        Gets this Sprite's current image.
+    */
+    public Image getImage() {
+        return anim.getImage();
     }
 }
@@ -0,0 +1,191 @@
+package com.brackeen.javagamebook.graphics;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+
+/**
+    A TextureAtlas packs many small images into a few large
+    pages. Drawing every image from the same few surfaces means
+    fewer surfaces for the graphics pipeline to switch between
+    and keep accelerated.
+    <p>
+    Add images with add(), then call pack(). After that, draw
+    an image with drawImage(), or look up its AtlasRegion with
+    getRegion(). Images are packed on shelves: sorted tallest
+    first, placed left to right, starting a new shelf below when
+    a row is full and a new page when a page is full.
+*/
+public class TextureAtlas {
+
+    public static final int PAGE_SIZE = 1024;
+
+    /**
+        Images larger than this in either direction aren't
+        packed; they're drawn from their own surface.
+    */
+    public static final int MAX_IMAGE_SIZE = 256;
+
+    private ArrayList<Image> pending;
+    private IdentityHashMap<Image, AtlasRegion> regions;
+    private ArrayList<Image> pages;
+
+    /**
+        Creates a new, empty TextureAtlas.
+    */
+    public TextureAtlas() {
+        pending = new ArrayList<Image>();
+        regions = new IdentityHashMap<Image, AtlasRegion>();
+        pages = new ArrayList<Image>();
+    }
+
+
+    /**
+        Adds an image to be packed by the next call to pack().
+        Returns false if the image is too large to pack or isn't
+        loaded yet. Adding the same image twice does nothing.
+    */
+    public boolean add(Image image) {
+        int width = image.getWidth(null);
+        int height = image.getHeight(null);
+        if (width <= 0 || height <= 0 ||
+            width > MAX_IMAGE_SIZE || height > MAX_IMAGE_SIZE)
+        {
+            return false;
+        }
+        if (!regions.containsKey(image) && !pending.contains(image)) {
+            pending.add(image);
+        }
+        return true;
+    }
+
+
+    /**
+        Packs the added images into new pages. If gc is null,
+        the pages are ARGB BufferedImages; otherwise they're
+        compatible with gc.
+    */
+    public void pack(GraphicsConfiguration gc) {
+        Collections.sort(pending, new Comparator<Image>() {
+            public int compare(Image a, Image b) {
+                return b.getHeight(null) - a.getHeight(null);
+            }
+        });
+
+        // place the images on shelves, starting a new page when
+        // the current one is full
+        int count = pending.size();
+        int[] x = new int[count];
+        int[] y = new int[count];
+        int[] page = new int[count];
+        int numPages = (count > 0) ? 1 : 0;
+        int shelfX = 0;
+        int shelfY = 0;
+        int shelfHeight = 0;
+        // (every page holds at least one image)
+        int[] pageHeights = new int[Math.max(count, 1)];
+        for (int i=0; i<count; i++) {
+            Image image = pending.get(i);
+            int width = image.getWidth(null);
+            int height = image.getHeight(null);
+            if (shelfX + width > PAGE_SIZE) {
+                // next shelf
+                shelfY += shelfHeight;
+                shelfX = 0;
+                shelfHeight = 0;
+            }
+            if (shelfY + height > PAGE_SIZE) {
+                // next page
+                pageHeights[numPages - 1] = shelfY;
+                numPages++;
+                shelfY = 0;
+                shelfX = 0;
+                shelfHeight = 0;
+            }
+            x[i] = shelfX;
+            y[i] = shelfY;
+            page[i] = numPages - 1;
+            shelfX += width;
+            shelfHeight = Math.max(shelfHeight, height);
+        }
+        pageHeights[Math.max(numPages - 1, 0)] = shelfY + shelfHeight;
+
+        // draw the images into the pages
+        Image[] newPages = new Image[numPages];
+        Graphics2D[] g = new Graphics2D[numPages];
+        for (int i=0; i<numPages; i++) {
+            // the last shelf of each page only needs its height
+            int height = pageHeights[i];
+            newPages[i] = createPage(gc, PAGE_SIZE, height);
+            g[i] = (Graphics2D)newPages[i].getGraphics();
+            g[i].setComposite(AlphaComposite.Src);
+            pages.add(newPages[i]);
+        }
+        for (int i=0; i<count; i++) {
+            Image image = pending.get(i);
+            g[page[i]].drawImage(image, x[i], y[i], null);
+            regions.put(image, new AtlasRegion(newPages[page[i]],
+                x[i], y[i], image.getWidth(null),
+                image.getHeight(null)));
+        }
+        for (int i=0; i<numPages; i++) {
+            g[i].dispose();
+        }
+        pending.clear();
+    }
+
+
+    private Image createPage(GraphicsConfiguration gc, int width,
+        int height)
+    {
+        if (gc != null) {
+            return gc.createCompatibleImage(width, height,
+                Transparency.TRANSLUCENT);
+        }
+        return new BufferedImage(width, height,
+            BufferedImage.TYPE_INT_ARGB);
+    }
+
+
+    /**
+        Gets the region an image was packed into, or null if the
+        image isn't in this atlas.
+    */
+    public AtlasRegion getRegion(Image image) {
+        return regions.get(image);
+    }
+
+
+    /**
+        Gets the number of pages in this atlas.
+    */
+    public int getPageCount() {
+        return pages.size();
+    }
+
+
+    /**
+        Gets the number of images packed in this atlas.
+    */
+    public int getImageCount() {
+        return regions.size();
+    }
+
+
+    /**
+        Draws an image from its atlas page, or from the image
+        itself if it isn't in this atlas.
+    */
+    public void drawImage(Graphics g, Image image, int x, int y) {
+        AtlasRegion region = regions.get(image);
+        if (region != null) {
+            region.draw(g, x, y);
+        }
+        else {
+            g.drawImage(image, x, y, null);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.brackeen.javagamebook.test;
+
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.Random;
+
+import com.brackeen.javagamebook.graphics.Animation;
+import com.brackeen.javagamebook.graphics.Sprite;
+import com.brackeen.javagamebook.tilegame.SpatialHash;
+import com.brackeen.javagamebook.tilegame.TileMap;
+import com.brackeen.javagamebook.tilegame.TileMapRenderer;
+import com.brackeen.javagamebook.util.TimeFormat;
+
+/**
+    Measures the cost of sprite collision queries as the number of
+    Sprites in a map grows, comparing a linear scan of the map's
+    Sprites with the map's SpatialHash. Levels grow longer as they
+    get more Sprites, so the map width grows with the Sprite count.
+    Updating the index is measured after moving every Sprite, and
+    after moving only a few, like the Sprites near the screen in a
+    real tick.
+    <p>
+    Usage: java CollisionBenchmark
+*/
+public class CollisionBenchmark {
+
+    private static final int[] SPRITE_COUNTS = {
+        100, 1000, 10000, 100000
+    };
+    private static final int MAP_HEIGHT = 15;
+    private static final int SPRITES_PER_COLUMN = 2;
+    private static final int NUM_QUERIES = 2000;
+    private static final int NUM_ROUNDS = 20;
+    private static final int SPRITE_SIZE = 48;
+    private static final int NUM_MOVERS = 100;
+
+    // keeps the JIT from optimizing the queries away
+    private static volatile int sink;
+
+    public static void main(String[] args) {
+        Image image = new BufferedImage(SPRITE_SIZE, SPRITE_SIZE,
+            BufferedImage.TYPE_INT_ARGB);
+        Animation anim = new Animation();
+        anim.addFrame(image, 100);
+
+        System.out.println("sprites   linear scan   spatial hash" +
+            "   update, all moved   update, " + NUM_MOVERS + " moved");
+        for (int i=0; i<SPRITE_COUNTS.length; i++) {
+            run(SPRITE_COUNTS[i], anim);
+        }
+    }
+
+
+    private static void run(int numSprites, Animation anim) {
+        Random random = new Random(numSprites);
+        int width = Math.max(20, numSprites / SPRITES_PER_COLUMN);
+        TileMap map = new TileMap(width, MAP_HEIGHT);
+        int mapWidth = TileMapRenderer.tilesToPixels(width);
+        int mapHeight = TileMapRenderer.tilesToPixels(MAP_HEIGHT);
+        Sprite[] sprites = new Sprite[numSprites];
+        for (int i=0; i<numSprites; i++) {
+            Sprite sprite = new Sprite(anim);
+            sprite.setX(random.nextInt(mapWidth));
+            sprite.setY(random.nextInt(mapHeight));
+            map.addSprite(sprite);
+            sprites[i] = sprite;
+        }
+        map.updateSpriteIndex();
+
+        int[] queryX = new int[NUM_QUERIES];
+        int[] queryY = new int[NUM_QUERIES];
+        for (int i=0; i<NUM_QUERIES; i++) {
+            queryX[i] = random.nextInt(mapWidth);
+            queryY[i] = random.nextInt(mapHeight);
+        }
+
+        long linear = Long.MAX_VALUE;
+        long hashed = Long.MAX_VALUE;
+        long update = Long.MAX_VALUE;
+        long fewUpdate = Long.MAX_VALUE;
+        int checksum = 0;
+        for (int round=0; round<NUM_ROUNDS; round++) {
+            // linear scan, like the old getSpriteCollision()
+            int queries = Math.min(NUM_QUERIES,
+                Math.max(20, 20000000 / numSprites));
+            long start = System.nanoTime();
+            for (int q=0; q<queries; q++) {
+                checksum += linearScan(map, queryX[q], queryY[q]);
+            }
+            linear = Math.min(linear,
+                (System.nanoTime() - start) / queries);
+
+            // spatial hash
+            SpatialHash index = map.getSpriteIndex();
+            start = System.nanoTime();
+            for (int q=0; q<NUM_QUERIES; q++) {
+                checksum += index.query(queryX[q], queryY[q],
+                    SPRITE_SIZE, SPRITE_SIZE);
+            }
+            hashed = Math.min(hashed,
+                (System.nanoTime() - start) / NUM_QUERIES);
+
+            // move every Sprite a few pixels
+            for (int i=0; i<numSprites; i++) {
+                Sprite sprite = sprites[i];
+                sprite.setX(sprite.getX() + random.nextInt(9) - 4);
+            }
+            start = System.nanoTime();
+            map.updateSpriteIndex();
+            update = Math.min(update, System.nanoTime() - start);
+
+            // move only a few Sprites
+            int first = random.nextInt(numSprites);
+            for (int i=0; i<NUM_MOVERS; i++) {
+                Sprite sprite = sprites[(first + i) % numSprites];
+                sprite.setX(sprite.getX() + random.nextInt(9) - 4);
+            }
+            start = System.nanoTime();
+            map.updateSpriteIndex();
+            fewUpdate = Math.min(fewUpdate, System.nanoTime() - start);
+        }
+
+        System.out.println(
+            TimeFormat.pad(Integer.toString(numSprites), 10) +
+            TimeFormat.pad(formatMicros(linear), 14) +
+            TimeFormat.pad(formatMicros(hashed), 15) +
+            TimeFormat.pad(formatMicros(update), 20) +
+            formatMicros(fewUpdate));
+        sink = checksum;
+    }
+
+
+    private static int linearScan(TileMap map, int x, int y) {
+        int found = 0;
+        Iterator<Sprite> i = map.getSprites();
+        while (i.hasNext()) {
+            Sprite sprite = i.next();
+            int sx = Math.round(sprite.getX());
+            int sy = Math.round(sprite.getY());
+            if (sx < x + SPRITE_SIZE && x < sx + sprite.getWidth() &&
+                sy < y + SPRITE_SIZE && y < sy + sprite.getHeight())
+            {
+                found++;
+            }
+        }
+        return found;
+    }
+
+
+    private static String formatMicros(long nanos) {
+        return TimeFormat.formatMicros(nanos) + " us";
+    }
+}
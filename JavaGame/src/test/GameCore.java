@@ -1,9 +1,12 @@
 package com.brackeen.javagamebook.test;
 
 import java.awt.*;
+import java.util.concurrent.locks.LockSupport;
 import javax.swing.ImageIcon;
 
 import com.brackeen.javagamebook.graphics.ScreenManager;
+import com.brackeen.javagamebook.util.FramePacer;
+import com.brackeen.javagamebook.util.FrameProfiler;
 
 /**
     Simple abstract class used for testing. Subclasses should
@@ -25,9 +28,22 @@ public abstract class GameCore {
         new DisplayMode(1024, 768, 24, 0),
     };
 
-    private boolean isRunning;
+    /**
+        Default limit on the number of simulation ticks run
+        between two drawn frames when the loop falls behind.
+    */
+    public static final int DEFAULT_MAX_CATCH_UP_STEPS = 5;
+
+    private volatile boolean isRunning;
     protected ScreenManager screen;
 
+    private int tickRate;
+    private boolean renderThread;
+    private volatile long lastTickTime;
+    private int maxCatchUpSteps = DEFAULT_MAX_CATCH_UP_STEPS;
+    private FrameProfiler profiler = new FrameProfiler();
+    private FramePacer pacer = new FramePacer();
+
 
     /**
         Signals the game loop that it's time to quit
@@ -37,6 +53,91 @@ public abstract class GameCore {
     }
 
 
+    /**
+        Sets the number of simulation ticks per second. If
+        ticksPerSecond is greater than zero, the game loop calls
+        update() with a fixed elapsed time and draws frames
+        in between, interpolated with draw(g, alpha). Otherwise
+        update() is called once per frame with the real elapsed
+        time.
+        <p>
+        The tick length is rounded down to whole milliseconds,
+        since update() takes milliseconds.
+    */
+    public void setTickRate(int ticksPerSecond) {
+        this.tickRate = ticksPerSecond;
+    }
+
+
+    /**
+        Gets the number of simulation ticks per second, or 0 if
+        the game loop uses a variable time step.
+    */
+    public int getTickRate() {
+        return tickRate;
+    }
+
+
+    /**
+        Sets the maximum number of ticks the fixed time step loop
+        runs before drawing a frame. If the simulation falls
+        further behind than this, the extra time is dropped so a
+        slow frame can't snowball into ever longer catch-ups.
+    */
+    public void setMaxCatchUpSteps(int maxCatchUpSteps) {
+        this.maxCatchUpSteps = Math.max(1, maxCatchUpSteps);
+    }
+
+
+    /**
+        Sets whether the simulation runs on its own thread. If
+        enabled (and the tick rate is set), a simulation thread
+        calls update() and publishTick() every tick while the
+        game loop thread only draws, so drawing a frame and
+        updating the next tick happen at the same time. Subclasses
+        must then draw from the state published by publishTick(),
+        not from the state update() is changing.
+    */
+    public void setRenderThreadEnabled(boolean renderThread) {
+        this.renderThread = renderThread;
+    }
+
+
+    public boolean isRenderThreadEnabled() {
+        return renderThread;
+    }
+
+
+    /**
+        Gets the length of a simulation tick in nanoseconds, or 0
+        if the game loop uses a variable time step.
+    */
+    public long getTickNanos() {
+        if (tickRate <= 0) {
+            return 0;
+        }
+        return Math.max(1, 1000 / tickRate) * 1000000L;
+    }
+
+
+    /**
+        Gets the FrameProfiler that times each phase of the game
+        loop.
+    */
+    public FrameProfiler getProfiler() {
+        return profiler;
+    }
+
+
+    /**
+        Gets the FramePacer that limits the frame rate. By
+        default, frames are drawn as fast as possible.
+    */
+    public FramePacer getFramePacer() {
+        return pacer;
+    }
+
+
     /**
         Calls init() and gameLoop()
     */
@@ -47,6 +148,9 @@ public abstract class GameCore {
         }
         finally {
             screen.restoreScreen();
+            if (profiler.isReportOnExit()) {
+                profiler.printSummary(System.out);
+            }
             lazilyExit();
         }
     }
@@ -90,6 +194,12 @@ public abstract class GameCore {
         window.setBackground(Color.blue);
         window.setForeground(Color.white);
 
+        // pace REFRESH_CAP mode with the display's refresh rate,
+        // unless flipping pages already does
+        pacer.setRefreshRate(
+            screen.getCurrentDisplayMode().getRefreshRate());
+        pacer.setDisplaySynced(screen.isShowSynced());
+
         isRunning = true;
     }
 
@@ -103,6 +213,23 @@ public abstract class GameCore {
         Runs through the game loop until stop() is called.
     */
     public void gameLoop() {
+        if (tickRate > 0 && renderThread) {
+            threadedLoop();
+        }
+        else if (tickRate > 0) {
+            fixedStepLoop();
+        }
+        else {
+            variableStepLoop();
+        }
+    }
+
+
+    /**
+        Runs the game loop, updating once per frame with the
+        real amount of elapsed time.
+    */
+    private void variableStepLoop() {
         long startTime = System.currentTimeMillis();
         long currTime = startTime;
 
@@ -110,22 +237,179 @@ public abstract class GameCore {
             long elapsedTime =
                 System.currentTimeMillis() - currTime;
             currTime += elapsedTime;
+            long frameStart = profiler.begin();
 
             // update
             update(elapsedTime);
+            long t = profiler.end(FrameProfiler.UPDATE, frameStart);
 
             // draw the screen
             Graphics2D g = screen.getGraphics();
             draw(g);
             g.dispose();
-            screen.update();
+            t = profiler.end(FrameProfiler.DRAW, t);
+            showFrame(t);
+            profiler.end(FrameProfiler.FRAME, frameStart);
+
+            // take a nap, if the frame pacer says so
+            paceFrame();
+        }
+    }
+
+
+    /**
+        Runs the game loop, updating in fixed ticks of
+        1000/tickRate milliseconds. Real time is collected in an
+        accumulator and spent in whole ticks; the leftover
+        fraction of a tick is used to interpolate the frame.
+    */
+    private void fixedStepLoop() {
+        long tickNanos = getTickNanos();
+        long tickMillis = tickNanos / 1000000L;
+        long accumulator = 0;
+        long currTime = System.nanoTime();
 
-            // don't take a nap! run as fast as possible
-            /*try {
-                Thread.sleep(20);
+        while (isRunning) {
+            long now = System.nanoTime();
+            accumulator += now - currTime;
+            currTime = now;
+
+            // run the ticks that are due
+            int steps = 0;
+            while (accumulator >= tickNanos && isRunning) {
+                long t = profiler.begin();
+                update(tickMillis);
+                profiler.end(FrameProfiler.UPDATE, t);
+                accumulator -= tickNanos;
+                steps++;
+                if (steps >= maxCatchUpSteps) {
+                    // too far behind: drop the backlog
+                    accumulator %= tickNanos;
+                    break;
+                }
+            }
+
+            // draw the screen between the last two ticks
+            float alpha = (float)accumulator / tickNanos;
+            long t = profiler.begin();
+            Graphics2D g = screen.getGraphics();
+            draw(g, alpha);
+            g.dispose();
+            t = profiler.end(FrameProfiler.DRAW, t);
+            showFrame(t);
+            profiler.end(FrameProfiler.FRAME, now);
+
+            paceFrame();
+        }
+    }
+
+
+    /**
+        Runs the game loop with the simulation on a separate
+        thread. This thread draws frames as the FramePacer allows;
+        alpha is how far the current time is past the last tick.
+    */
+    private void threadedLoop() {
+        Thread simulation = new Thread("Simulation") {
+            public void run() {
+                simulationLoop();
             }
-            catch (InterruptedException ex) { }*/
+        };
+        lastTickTime = System.nanoTime();
+        simulation.start();
+
+        long tickNanos = getTickNanos();
+        while (isRunning) {
+            long now = System.nanoTime();
+            float alpha = (float)(now - lastTickTime) / tickNanos;
+            alpha = Math.max(0, Math.min(alpha, 1));
+
+            long t = profiler.begin();
+            Graphics2D g = screen.getGraphics();
+            draw(g, alpha);
+            g.dispose();
+            t = profiler.end(FrameProfiler.DRAW, t);
+            showFrame(t);
+            profiler.end(FrameProfiler.FRAME, now);
+
+            paceFrame();
         }
+
+        try {
+            simulation.join();
+        }
+        catch (InterruptedException ex) { }
+    }
+
+
+    /**
+        Runs update() and publishTick() once per tick until the
+        game stops. If the simulation falls more than
+        maxCatchUpSteps ticks behind, the backlog is dropped.
+    */
+    private void simulationLoop() {
+        long tickNanos = getTickNanos();
+        long tickMillis = tickNanos / 1000000L;
+        long nextTickTime = System.nanoTime() + tickNanos;
+
+        try {
+            while (isRunning) {
+                long now = System.nanoTime();
+                if (now < nextTickTime) {
+                    LockSupport.parkNanos(nextTickTime - now);
+                    continue;
+                }
+                if (now - nextTickTime > maxCatchUpSteps * tickNanos) {
+                    // too far behind: drop the backlog
+                    nextTickTime = now;
+                }
+
+                long t = profiler.begin();
+                update(tickMillis);
+                publishTick();
+                lastTickTime = profiler.end(FrameProfiler.UPDATE, t);
+                nextTickTime += tickNanos;
+            }
+        }
+        catch (RuntimeException ex) {
+            // don't leave the render thread drawing a frozen game
+            stop();
+            throw ex;
+        }
+    }
+
+
+    /**
+        Called on the simulation thread after each update() when
+        the render thread is enabled. Subclasses should publish a
+        copy of the state that draw() needs. Does nothing by
+        default.
+    */
+    protected void publishTick() {
+        // do nothing
+    }
+
+
+    /**
+        Waits until the FramePacer says the next frame is due,
+        timing the wait and recording the pacing jitter.
+    */
+    private void paceFrame() {
+        long t = profiler.begin();
+        pacer.endFrame();
+        profiler.end(FrameProfiler.WAIT, t);
+        profiler.record(FrameProfiler.JITTER, pacer.getLastJitter());
+    }
+
+
+    /**
+        Shows the drawn frame and syncs the display, timing both.
+    */
+    private void showFrame(long startTime) {
+        screen.show();
+        long t = profiler.end(FrameProfiler.SHOW, startTime);
+        screen.sync();
+        profiler.end(FrameProfiler.SYNC, t);
     }
 
 
@@ -143,4 +427,15 @@ public abstract class GameCore {
         method.
     */
     public abstract void draw(Graphics2D g);
+
+
+    /**
+        Draws to the screen when running with a fixed tick rate.
+        The alpha value, from 0 to 1, is how far the current time
+        is between the previous tick and the latest one.
+        By default, this method ignores alpha and calls draw(g).
+    */
+    public void draw(Graphics2D g, float alpha) {
+        draw(g);
+    }
 }
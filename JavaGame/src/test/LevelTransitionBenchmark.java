@@ -0,0 +1,71 @@
+package com.brackeen.javagamebook.test;
+
+import com.brackeen.javagamebook.tilegame.ResourceManager;
+import com.brackeen.javagamebook.util.TimeFormat;
+
+/**
+    Measures how long the frame that moves to the next level
+    spends loading the map, with and without preloading the next
+    map in the background. Between transitions, the benchmark
+    waits a while, as if the level were being played. Run it from
+    the game directory so the images and maps can be found.
+    <p>
+    Fails (with exit code 1) unless preloading makes both the
+    first transition and the mean transition faster.
+    <p>
+    Usage: java LevelTransitionBenchmark
+*/
+public class LevelTransitionBenchmark {
+
+    private static final int NUM_TRANSITIONS = 20;
+    private static final long PLAY_TIME = 100;
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        System.out.println("preload   first      mean       max");
+        long[] off = run(false);
+        long[] on = run(true);
+
+        boolean passed = (on[0] < off[0] && on[1] < off[1]);
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+
+    /**
+        Runs the transitions and returns the first and mean
+        transition times, in nanoseconds.
+    */
+    private static long[] run(boolean preload) throws Exception {
+        // a new ResourceManager, so the first level is loaded cold
+        ResourceManager resourceManager = new ResourceManager(null);
+        resourceManager.setPreloadEnabled(preload);
+        resourceManager.loadNextMap();
+
+        long first = 0;
+        long total = 0;
+        long max = 0;
+        for (int i=0; i<NUM_TRANSITIONS; i++) {
+            Thread.sleep(PLAY_TIME);
+            long start = System.nanoTime();
+            resourceManager.loadNextMap();
+            long elapsed = System.nanoTime() - start;
+            if (i == 0) {
+                first = elapsed;
+            }
+            total += elapsed;
+            max = Math.max(max, elapsed);
+        }
+        resourceManager.close();
+
+        System.out.println((preload ? "on        " : "off       ") +
+            format(first) + format(total / NUM_TRANSITIONS) +
+            format(max));
+        return new long[] { first, total / NUM_TRANSITIONS };
+    }
+
+
+    private static String format(long nanos) {
+        return TimeFormat.pad(TimeFormat.formatMicros(nanos) + " us", 11);
+    }
+}
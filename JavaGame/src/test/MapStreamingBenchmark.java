@@ -0,0 +1,184 @@
+package com.brackeen.javagamebook.test;
+
+import java.io.*;
+
+import com.brackeen.javagamebook.tilegame.EntityWorld;
+import com.brackeen.javagamebook.tilegame.MapCompiler;
+import com.brackeen.javagamebook.tilegame.ResourceManager;
+import com.brackeen.javagamebook.tilegame.TileMap;
+
+/**
+    Writes a very long text map, then walks a streamed TileMap of
+    it from one end to the other, reading every tile on screen at
+    each step the way the renderer does. The walk is done with
+    the text map, then again with the map compiled by
+    MapCompiler. Reports how long each took, how long reloading
+    the map took, how many chunks stayed loaded, and how many
+    entities and how much heap were used halfway through the walk
+    and at the end. Exits with status 1 if the entities or the
+    heap grew in the second half, since doubling the walk should
+    take no more memory. Run it from the game directory so the
+    images can be found.
+    <p>
+    Usage: java MapStreamingBenchmark [columns]
+*/
+public class MapStreamingBenchmark {
+
+    private static final int DEFAULT_COLUMNS = 1000000;
+    private static final int MAP_HEIGHT = 15;
+    private static final int SCREEN_COLUMNS = 17;
+    private static final int STEP = 4;
+    private static final int NUM_RELOADS = 100;
+    // how much the heap may grow in the second half of the walk,
+    // for garbage the collector leaves behind
+    private static final long HEAP_SLACK = 1024 * 1024;
+    // how many more entities there may be at the end, depending on
+    // where between two stars the walk stops
+    private static final int ENTITY_SLACK = 8;
+
+    // keeps the JIT from optimizing the tile reads away
+    private static volatile int sink;
+
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        int columns = DEFAULT_COLUMNS;
+        if (args.length > 0) {
+            columns = Integer.parseInt(args[0]);
+        }
+
+        File file = File.createTempFile("streaming", ".txt");
+        file.deleteOnExit();
+        long t = System.currentTimeMillis();
+        writeMap(file, columns);
+        System.out.println("Wrote " + columns + " columns (" +
+            file.length() / 1024 + " KB) in " +
+            (System.currentTimeMillis() - t) + " ms");
+
+        ResourceManager resourceManager = new ResourceManager(null);
+        System.out.println("Text map:");
+        boolean passed = walk(resourceManager, file.getPath(), columns);
+
+        String compiledName = MapCompiler.getCompiledName(file.getPath());
+        File compiledFile = new File(compiledName);
+        compiledFile.deleteOnExit();
+        t = System.currentTimeMillis();
+        MapCompiler.compile(file.getPath(), compiledName,
+            resourceManager);
+        System.out.println("Compiled map in " +
+            (System.currentTimeMillis() - t) + " ms (" +
+            compiledFile.length() / 1024 + " KB)");
+        System.out.println("Compiled map:");
+        passed &= walk(resourceManager, file.getPath(), columns);
+
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+
+    /**
+        Walks a map and prints what it took. Returns false if the
+        entities or the heap grew in the second half of the walk.
+    */
+    private static boolean walk(ResourceManager resourceManager,
+        String filename, int columns) throws IOException
+    {
+        long t = System.currentTimeMillis();
+        TileMap map = resourceManager.loadMap(filename);
+        System.out.println("  Opened map in " +
+            (System.currentTimeMillis() - t) + " ms");
+
+        t = System.currentTimeMillis();
+        int maxLoaded = 0;
+        int solid = 0;
+        int halfEntities = 0;
+        long halfHeap = 0;
+        for (int x=0; x<columns; x+=STEP) {
+            if (x == columns / 2 / STEP * STEP) {
+                long start = System.currentTimeMillis();
+                halfEntities = getEntityCount(map);
+                halfHeap = getUsedHeap();
+                // don't count the measuring as walking
+                t += System.currentTimeMillis() - start;
+            }
+            map.streamAround(x);
+            maxLoaded = Math.max(maxLoaded, map.getLoadedChunkCount());
+            for (int y=0; y<MAP_HEIGHT; y++) {
+                for (int i=x; i<x+SCREEN_COLUMNS; i++) {
+                    if (map.isSolid(i, y)) {
+                        solid++;
+                    }
+                }
+            }
+        }
+        sink = solid;
+        long elapsed = System.currentTimeMillis() - t;
+        int loaded = map.getLoadedChunkCount();
+        int entities = getEntityCount(map);
+        long used = getUsedHeap();
+
+        // reloading, as when the player dies, reuses the template
+        long reloadTime = Long.MAX_VALUE;
+        for (int i=0; i<NUM_RELOADS; i++) {
+            long start = System.nanoTime();
+            resourceManager.loadMap(filename);
+            reloadTime = Math.min(reloadTime, System.nanoTime() - start);
+        }
+
+        System.out.println("  Walked map in " + elapsed + " ms");
+        System.out.println("  Reloaded map in " + reloadTime / 1000 +
+            " us");
+        System.out.println("  Loaded chunks: " + loaded +
+            " (max " + maxLoaded + ")");
+        System.out.println("  Entities:      " + halfEntities +
+            " halfway, " + entities + " at the end");
+        System.out.println("  Heap used:     " + halfHeap / 1024 +
+            " KB halfway, " + used / 1024 + " KB at the end");
+        return (entities <= halfEntities + ENTITY_SLACK &&
+            used <= halfHeap + HEAP_SLACK);
+    }
+
+
+    private static int getEntityCount(TileMap map) {
+        return map.getWorld().getStore(EntityWorld.BODY).size();
+    }
+
+
+    private static long getUsedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+
+    /**
+        Writes a map with ground along the bottom, some floating
+        platforms, and a star every 100 columns.
+    */
+    private static void writeMap(File file, int columns)
+        throws IOException
+    {
+        Writer out = new BufferedWriter(new FileWriter(file));
+        try {
+            out.write("# generated by MapStreamingBenchmark\n");
+            for (int y=0; y<MAP_HEIGHT; y++) {
+                for (int x=0; x<columns; x++) {
+                    char ch = ' ';
+                    if (y == MAP_HEIGHT - 1) {
+                        ch = 'B';
+                    }
+                    else if (y == MAP_HEIGHT - 5 && x % 40 < 6) {
+                        ch = 'C';
+                    }
+                    else if (y == MAP_HEIGHT - 2 && x % 100 == 50) {
+                        ch = 'o';
+                    }
+                    out.write(ch);
+                }
+                out.write('\n');
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+}
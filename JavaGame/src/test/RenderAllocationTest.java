@@ -0,0 +1,95 @@
+package com.brackeen.javagamebook.test;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+
+import com.brackeen.javagamebook.tilegame.ResourceManager;
+import com.brackeen.javagamebook.tilegame.TileMap;
+import com.brackeen.javagamebook.tilegame.TileMapRenderer;
+import com.brackeen.javagamebook.tilegame.sprites.ProjectilePool;
+
+/**
+    Checks that drawing a frame doesn't allocate any memory once
+    the renderer has warmed up. The first level is drawn, with
+    the background and a few bullets in flight, until the JIT
+    has settled, then the bytes allocated by this thread over a
+    number of frames are counted with the HotSpot ThreadMXBean.
+    Exits with status 1 if any frame allocated. Run it from the
+    game directory so the images and maps can be found.
+    <p>
+    Usage: java RenderAllocationTest
+*/
+public class RenderAllocationTest {
+
+    private static final int SCREEN_WIDTH = 800;
+    private static final int SCREEN_HEIGHT = 600;
+    private static final int NUM_BULLETS = 6;
+    private static final int WARMUP_FRAMES = 20000;
+    private static final int MEASURED_FRAMES = 1000;
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean)
+            ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            System.out.println("Allocation counting isn't supported");
+            System.exit(0);
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        ResourceManager resourceManager = new ResourceManager(null);
+        TileMap map = resourceManager.loadNextMap();
+        resourceManager.close();
+        for (int i=0; i<NUM_BULLETS; i++) {
+            map.getProjectiles().spawn(200 + i * 50, 300, 1,
+                (i % 2 == 0) ? ProjectilePool.OWNER_PLAYER :
+                ProjectilePool.OWNER_ENEMY);
+        }
+        map.savePositions();
+        Image background = resourceManager.loadImage("background.png");
+
+        boolean passed = true;
+        TileMapRenderer renderer = new TileMapRenderer();
+        renderer.setBackground(background);
+        passed &= run(threads, map, renderer, "no atlas");
+        renderer = new TileMapRenderer();
+        renderer.setBackground(background);
+        renderer.setTextureAtlas(resourceManager.getTextureAtlas());
+        passed &= run(threads, map, renderer, "atlas");
+        renderer = new TileMapRenderer();
+        renderer.setBackground(background);
+        renderer.setTileCacheEnabled(true);
+        passed &= run(threads, map, renderer, "tile cache");
+
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+
+    private static boolean run(com.sun.management.ThreadMXBean threads,
+        TileMap map, TileMapRenderer renderer, String name)
+    {
+        BufferedImage screen = new BufferedImage(SCREEN_WIDTH,
+            SCREEN_HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = screen.createGraphics();
+        for (int i=0; i<WARMUP_FRAMES; i++) {
+            renderer.draw(g, map, SCREEN_WIDTH, SCREEN_HEIGHT, 0.5f);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long start = threads.getThreadAllocatedBytes(threadId);
+        for (int i=0; i<MEASURED_FRAMES; i++) {
+            renderer.draw(g, map, SCREEN_WIDTH, SCREEN_HEIGHT, 0.5f);
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) -
+            start;
+        g.dispose();
+
+        System.out.println(name + ": " +
+            ((float)allocated / MEASURED_FRAMES) + " bytes per frame");
+        return (allocated == 0);
+    }
+}
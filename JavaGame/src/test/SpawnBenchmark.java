@@ -0,0 +1,97 @@
+package com.brackeen.javagamebook.test;
+
+import java.lang.reflect.Constructor;
+
+import com.brackeen.javagamebook.graphics.Animation;
+import com.brackeen.javagamebook.graphics.Sprite;
+import com.brackeen.javagamebook.tilegame.ResourceManager;
+import com.brackeen.javagamebook.tilegame.SpawnRegistry;
+import com.brackeen.javagamebook.tilegame.SpriteFactory;
+
+/**
+    Measures the cost of spawning Sprites, comparing the old way
+    of cloning a "host" Sprite (finding the subclass's constructor
+    by reflection and passing it copies of the Animations) with
+    building the Sprite with its SpriteFactory. Run it from the
+    game directory so the images can be found.
+    <p>
+    The game no longer has the reflective clone: Sprites are only
+    built by their SpriteFactory. reflectiveClone() below is a
+    copy of the removed code, kept here only as the baseline for
+    the comparison.
+    <p>
+    Usage: java SpawnBenchmark
+*/
+public class SpawnBenchmark {
+
+    private static final int NUM_SPAWNS = 100000;
+    private static final int NUM_ROUNDS = 10;
+
+    // the map characters of the Sprites to spawn
+    private static final char[] GLYPHS = { '1', 'o' };
+    private static final String[] NAMES = { "Grub", "Star" };
+
+    // keeps the JIT from optimizing the spawns away
+    private static volatile Object sink;
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        ResourceManager resourceManager = new ResourceManager(null);
+        SpawnRegistry registry = resourceManager.getSpawnRegistry();
+        resourceManager.close();
+
+        System.out.println("sprite   " + NUM_SPAWNS + " clones   " +
+            NUM_SPAWNS + " factory spawns");
+        for (int i=0; i<GLYPHS.length; i++) {
+            run(NAMES[i], registry.getFactory(GLYPHS[i]));
+        }
+    }
+
+
+    /**
+        Clones a Sprite the old way, calling the first constructor of
+        its class by reflection with a copy of the specified
+        Animation for each of its parameters. This reimplements the
+        clone() the Sprite subclasses used to have; nothing in the
+        game calls it.
+    */
+    private static Object reflectiveClone(Sprite host, Animation anim) {
+        Constructor constructor = host.getClass().getConstructors()[0];
+        Object[] args = new Object[constructor.getParameterTypes().length];
+        for (int i=0; i<args.length; i++) {
+            args[i] = anim.clone();
+        }
+        try {
+            return constructor.newInstance(args);
+        }
+        catch (Exception ex) {
+            // should never happen
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+
+    private static void run(String name, SpriteFactory factory) {
+        Sprite host = factory.create();
+        Animation anim = new Animation();
+        anim.addFrame(host.getImage(), 100);
+        long cloned = Long.MAX_VALUE;
+        long built = Long.MAX_VALUE;
+        for (int round=0; round<NUM_ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i=0; i<NUM_SPAWNS; i++) {
+                sink = reflectiveClone(host, anim);
+            }
+            cloned = Math.min(cloned, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i=0; i<NUM_SPAWNS; i++) {
+                sink = factory.create();
+            }
+            built = Math.min(built, System.nanoTime() - start);
+        }
+        System.out.println(name + "     " + (cloned / 1000000) +
+            " ms          " + (built / 1000000) + " ms");
+    }
+}
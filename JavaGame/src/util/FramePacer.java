@@ -0,0 +1,249 @@
+package com.brackeen.javagamebook.util;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+    The FramePacer limits how often a game loop draws frames, so
+    the loop doesn't use a whole CPU core drawing frames the
+    display can't show. It has four modes:
+    <ul>
+    <li>UNLIMITED: don't wait at all.
+    <li>TARGET_FPS: wait until the next frame is due at the
+        target frame rate.
+    <li>REFRESH_CAP: cap the frame rate at the display's refresh
+        rate, waiting for the next frame boundary on a timer.
+        Frames that miss a boundary wait for the following one
+        instead of drawing late. The boundaries aren't lined up
+        with the display's vertical blank, so this isn't vsync;
+        if showing a frame already waits for the display (see
+        setDisplaySynced()), this mode doesn't wait at all.
+    <li>POWER_SAVE: run at no more than POWER_SAVE_FPS and only
+        sleep, never spin, accepting a little more jitter.
+    </ul>
+    Waiting is done by sleeping for most of the remaining time
+    and spinning for the rest. The pacer measures how much longer
+    than requested each sleep takes and wakes up that much early
+    next time.
+*/
+public class FramePacer {
+
+    public static final int UNLIMITED = 0;
+    public static final int TARGET_FPS = 1;
+    public static final int REFRESH_CAP = 2;
+    public static final int POWER_SAVE = 3;
+
+    public static final int DEFAULT_REFRESH_RATE = 60;
+    public static final int POWER_SAVE_FPS = 30;
+
+    private static final String[] MODE_NAMES = {
+        "unlimited", "fps", "refresh", "powersave"
+    };
+
+    // don't bother sleeping for less than this (nanoseconds)
+    private static final long MIN_SLEEP_TIME = 200000;
+    // initial guess of how late a sleep wakes up (nanoseconds)
+    private static final long INITIAL_OVERSHOOT = 1000000;
+
+    private int mode;
+    private int targetFps;
+    private int refreshRate;
+    private boolean displaySynced;
+
+    private long nextFrameTime;
+    private long lastFrameTime;
+    private long overshoot;
+    private long lastJitter;
+
+    /**
+        Creates a new FramePacer that doesn't limit the frame
+        rate.
+    */
+    public FramePacer() {
+        mode = UNLIMITED;
+        targetFps = DEFAULT_REFRESH_RATE;
+        refreshRate = DEFAULT_REFRESH_RATE;
+        overshoot = INITIAL_OVERSHOOT;
+    }
+
+
+    /**
+        Sets the pacing mode: UNLIMITED, TARGET_FPS, REFRESH_CAP
+        or POWER_SAVE.
+    */
+    public void setMode(int mode) {
+        if (mode < UNLIMITED || mode > POWER_SAVE) {
+            throw new IllegalArgumentException("Bad mode: " + mode);
+        }
+        this.mode = mode;
+        nextFrameTime = 0;
+    }
+
+
+    public int getMode() {
+        return mode;
+    }
+
+
+    /**
+        Gets the mode with the specified name ("unlimited",
+        "fps", "refresh" or "powersave"), or -1 if there is no
+        such mode.
+    */
+    public static int getMode(String name) {
+        for (int i=0; i<MODE_NAMES.length; i++) {
+            if (MODE_NAMES[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+        Sets the frame rate used in TARGET_FPS mode.
+    */
+    public void setTargetFps(int targetFps) {
+        this.targetFps = Math.max(1, targetFps);
+        nextFrameTime = 0;
+    }
+
+
+    /**
+        Sets the display refresh rate used in REFRESH_CAP mode.
+        Values less than or equal to zero (like
+        DisplayMode.REFRESH_RATE_UNKNOWN) use DEFAULT_REFRESH_RATE.
+    */
+    public void setRefreshRate(int refreshRate) {
+        this.refreshRate = (refreshRate > 0) ?
+            refreshRate : DEFAULT_REFRESH_RATE;
+        nextFrameTime = 0;
+    }
+
+
+    /**
+        Sets whether showing a frame already waits for the
+        display's vertical blank (for example, a page-flipping
+        BufferStrategy in full screen mode). If so, REFRESH_CAP
+        mode doesn't wait, since waiting on a timer as well could
+        miss the next blank and halve the frame rate.
+    */
+    public void setDisplaySynced(boolean displaySynced) {
+        this.displaySynced = displaySynced;
+        nextFrameTime = 0;
+    }
+
+
+    /**
+        Gets the time between frames in nanoseconds for the
+        current mode, or 0 if the frame rate isn't limited.
+    */
+    public long getFramePeriod() {
+        switch (mode) {
+            case TARGET_FPS:
+                return 1000000000L / targetFps;
+            case REFRESH_CAP:
+                return 1000000000L / refreshRate;
+            case POWER_SAVE:
+                return 1000000000L / Math.min(targetFps, POWER_SAVE_FPS);
+            default:
+                return 0;
+        }
+    }
+
+
+    /**
+        Waits until the next frame is due. Call once per frame,
+        after the frame is shown.
+    */
+    public void endFrame() {
+        long period = getFramePeriod();
+        long now = System.nanoTime();
+        if (period > 0 && !(mode == REFRESH_CAP && displaySynced)) {
+            if (nextFrameTime == 0) {
+                // first frame: start the schedule now
+                nextFrameTime = now + period;
+            }
+            else if (mode == REFRESH_CAP) {
+                // skip any frame boundaries we already missed
+                if (now > nextFrameTime) {
+                    long missed = (now - nextFrameTime) / period + 1;
+                    nextFrameTime += missed * period;
+                }
+            }
+            else if (now - nextFrameTime > period) {
+                // more than a frame late: don't try to catch up
+                nextFrameTime = now;
+            }
+            now = waitUntil(nextFrameTime, mode != POWER_SAVE);
+            nextFrameTime += period;
+        }
+
+        if (lastFrameTime != 0) {
+            lastJitter = Math.abs((now - lastFrameTime) - period);
+        }
+        lastFrameTime = now;
+    }
+
+
+    /**
+        Gets how far the last frame interval was from the frame
+        period, in nanoseconds. In UNLIMITED mode this is just
+        the length of the last frame.
+    */
+    public long getLastJitter() {
+        return lastJitter;
+    }
+
+
+    /**
+        Gets the current estimate of how late a sleep wakes up,
+        in nanoseconds.
+    */
+    public long getSleepOvershoot() {
+        return overshoot;
+    }
+
+
+    /**
+        Sleeps until shortly before the deadline, then spins
+        until it passes (if spinning is allowed). Returns the
+        time it actually woke up.
+    */
+    private long waitUntil(long deadline, boolean spin) {
+        long now = System.nanoTime();
+        while (now < deadline) {
+            long remaining = deadline - now;
+            long sleepTime = spin ? remaining - overshoot : remaining;
+            if (sleepTime >= MIN_SLEEP_TIME) {
+                LockSupport.parkNanos(sleepTime);
+                long wakeTime = System.nanoTime();
+                measureOvershoot(wakeTime - now - sleepTime);
+                now = wakeTime;
+            }
+            else if (spin) {
+                Thread.yield();
+                now = System.nanoTime();
+            }
+            else {
+                break;
+            }
+        }
+        return now;
+    }
+
+
+    /**
+        Updates the overshoot estimate. It rises quickly when a
+        sleep is late and falls slowly, so the spin covers most
+        late wake-ups.
+    */
+    private void measureOvershoot(long measured) {
+        measured = Math.max(0, measured);
+        if (measured > overshoot) {
+            overshoot = (overshoot + measured) / 2;
+        }
+        else {
+            overshoot = (overshoot * 15 + measured) / 16;
+        }
+    }
+}
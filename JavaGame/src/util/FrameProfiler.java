@@ -0,0 +1,167 @@
+package com.brackeen.javagamebook.util;
+
+import java.io.PrintStream;
+
+/**
+    The FrameProfiler times the phases of a game loop frame
+    (update, draw, show, sync, waiting for the next frame, and
+    the whole frame except the wait) with System.nanoTime() and
+    records each phase into its own LatencyHistogram. It also
+    records the pacing jitter: how far each frame interval was
+    from the frame period the FramePacer aimed for.
+    <p>
+    Typical use:
+    <pre>
+    long t = profiler.begin();
+    update(elapsedTime);
+    t = profiler.end(FrameProfiler.UPDATE, t);
+    draw(g);
+    t = profiler.end(FrameProfiler.DRAW, t);
+    </pre>
+*/
+public class FrameProfiler {
+
+    public static final int UPDATE = 0;
+    public static final int DRAW = 1;
+    public static final int SHOW = 2;
+    public static final int SYNC = 3;
+    public static final int WAIT = 4;
+    public static final int FRAME = 5;
+    public static final int JITTER = 6;
+
+    public static final int NUM_PHASES = 7;
+
+    private static final String[] PHASE_NAMES = {
+        "update", "draw", "show", "sync", "wait", "frame", "jitter"
+    };
+
+    private static final double[] PERCENTILES = {
+        50, 99, 99.9
+    };
+
+    private LatencyHistogram[] histograms;
+    private boolean reportOnExit;
+
+    /**
+        Creates a new FrameProfiler.
+    */
+    public FrameProfiler() {
+        histograms = new LatencyHistogram[NUM_PHASES];
+        for (int i=0; i<NUM_PHASES; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+
+    /**
+        Returns the current time, to be passed to end().
+    */
+    public long begin() {
+        return System.nanoTime();
+    }
+
+
+    /**
+        Records the time since startTime for the specified phase
+        and returns the current time, so consecutive phases can
+        be chained.
+    */
+    public long end(int phase, long startTime) {
+        long now = System.nanoTime();
+        histograms[phase].record(now - startTime);
+        return now;
+    }
+
+
+    /**
+        Records a value, in nanoseconds, for the specified phase.
+    */
+    public void record(int phase, long nanos) {
+        histograms[phase].record(nanos);
+    }
+
+
+    /**
+        Gets the histogram for the specified phase.
+    */
+    public LatencyHistogram getHistogram(int phase) {
+        return histograms[phase];
+    }
+
+
+    /**
+        Gets the name of the specified phase.
+    */
+    public static String getPhaseName(int phase) {
+        return PHASE_NAMES[phase];
+    }
+
+
+    /**
+        Clears the recorded times of all phases.
+    */
+    public void reset() {
+        for (int i=0; i<NUM_PHASES; i++) {
+            histograms[i].reset();
+        }
+    }
+
+
+    /**
+        Sets whether the game should print a summary when it
+        exits.
+    */
+    public void setReportOnExit(boolean reportOnExit) {
+        this.reportOnExit = reportOnExit;
+    }
+
+
+    public boolean isReportOnExit() {
+        return reportOnExit;
+    }
+
+
+    /**
+        Gets a one-line summary of a phase, in milliseconds:
+        the percentiles p50, p99, p99.9 and the maximum.
+    */
+    public String getSummary(int phase) {
+        LatencyHistogram h = histograms[phase];
+        StringBuffer buffer = new StringBuffer();
+        buffer.append(TimeFormat.pad(PHASE_NAMES[phase], 7));
+        // another thread may be recording into the histogram
+        synchronized (h) {
+            for (int i=0; i<PERCENTILES.length; i++) {
+                buffer.append(" p").append(
+                    formatPercentile(PERCENTILES[i]));
+                buffer.append(' ');
+                buffer.append(
+                    TimeFormat.formatMillis(
+                    h.getPercentile(PERCENTILES[i])));
+            }
+            buffer.append(" max ").append(
+                TimeFormat.formatMillis(h.getMax()));
+            buffer.append(" (n=").append(h.getCount()).append(')');
+        }
+        return buffer.toString();
+    }
+
+
+    /**
+        Prints a summary of every phase.
+    */
+    public void printSummary(PrintStream out) {
+        out.println("Frame profile (ms):");
+        for (int i=0; i<NUM_PHASES; i++) {
+            out.println("  " + getSummary(i));
+        }
+    }
+
+
+    private static String formatPercentile(double percentile) {
+        if (percentile == Math.floor(percentile)) {
+            return Integer.toString((int)percentile);
+        }
+        return Double.toString(percentile);
+    }
+}
@@ -0,0 +1,135 @@
+package com.brackeen.javagamebook.util;
+
+/**
+    A LatencyHistogram records durations (in nanoseconds) into a
+    fixed number of buckets, so it never allocates after it is
+    created. Buckets are exact below 32ns and above that each
+    power of two is split into 16 sub-buckets, so percentiles
+    are accurate to about 6%.
+    <p>
+    The methods are synchronized, so one thread (like the
+    simulation thread) can record values while another (like the
+    render thread drawing the profiler overlay) reads them.
+    Synchronize on the histogram to read several values that
+    agree with each other.
+*/
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int NUM_BUCKETS = 60 * SUB_BUCKETS;
+
+    private long[] counts;
+    private long totalCount;
+    private long totalValue;
+    private long max;
+
+    /**
+        Creates a new, empty LatencyHistogram.
+    */
+    public LatencyHistogram() {
+        counts = new long[NUM_BUCKETS];
+    }
+
+
+    /**
+        Records a value. Negative values are recorded as 0.
+    */
+    public synchronized void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[bucketFor(value)]++;
+        totalCount++;
+        totalValue += value;
+        if (value > max) {
+            max = value;
+        }
+    }
+
+
+    /**
+        Clears all recorded values.
+    */
+    public synchronized void reset() {
+        for (int i=0; i<counts.length; i++) {
+            counts[i] = 0;
+        }
+        totalCount = 0;
+        totalValue = 0;
+        max = 0;
+    }
+
+
+    /**
+        Gets the number of recorded values.
+    */
+    public synchronized long getCount() {
+        return totalCount;
+    }
+
+
+    /**
+        Gets the largest recorded value.
+    */
+    public synchronized long getMax() {
+        return max;
+    }
+
+
+    /**
+        Gets the mean of the recorded values, or 0 if nothing has
+        been recorded.
+    */
+    public synchronized long getMean() {
+        if (totalCount == 0) {
+            return 0;
+        }
+        return totalValue / totalCount;
+    }
+
+
+    /**
+        Gets the value at the specified percentile (0 to 100).
+        The result is the upper bound of the bucket the
+        percentile falls in, but never more than getMax().
+        Returns 0 if nothing has been recorded.
+    */
+    public synchronized long getPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long target = (long)Math.ceil(percentile / 100 * totalCount);
+        target = Math.max(1, Math.min(target, totalCount));
+        long count = 0;
+        for (int i=0; i<counts.length; i++) {
+            count += counts[i];
+            if (count >= target) {
+                return Math.min(bucketUpperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+
+    private static int bucketFor(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int)value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value) -
+            SUB_BUCKET_BITS;
+        int mantissa = (int)(value >>> exponent);
+        return Math.min(exponent * SUB_BUCKETS + mantissa,
+            NUM_BUCKETS - 1);
+    }
+
+
+    private static long bucketUpperBound(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = (bucket >> SUB_BUCKET_BITS) - 1;
+        long mantissa = (bucket & (SUB_BUCKETS - 1)) + SUB_BUCKETS;
+        return ((mantissa + 1) << exponent) - 1;
+    }
+}
@@ -0,0 +1,57 @@
+package com.brackeen.javagamebook.util;
+
+/**
+    The TimeFormat class formats durations (in nanoseconds) for
+    the frame profiler, the load time report and the benchmarks,
+    and pads them into columns.
+*/
+public class TimeFormat {
+
+    private TimeFormat() { }
+
+
+    /**
+        Formats nanoseconds as milliseconds with two decimals.
+    */
+    public static String formatMillis(long nanos) {
+        long hundredths = (nanos + 5000) / 10000;
+        long fraction = hundredths % 100;
+        return (hundredths / 100) + (fraction < 10 ? ".0" : ".") +
+            fraction;
+    }
+
+
+    /**
+        Formats nanoseconds as microseconds with one decimal.
+    */
+    public static String formatMicros(long nanos) {
+        long tenths = (nanos + 50) / 100;
+        return (tenths / 10) + "." + (tenths % 10);
+    }
+
+
+    /**
+        Pads a string with spaces on the right, up to the
+        specified width.
+    */
+    public static String pad(String s, int width) {
+        StringBuffer buffer = new StringBuffer(s);
+        while (buffer.length() < width) {
+            buffer.append(' ');
+        }
+        return buffer.toString();
+    }
+
+
+    /**
+        Pads a string with spaces on the left, up to the
+        specified width, so numbers line up on the right.
+    */
+    public static String padLeft(String s, int width) {
+        StringBuffer buffer = new StringBuffer();
+        for (int i=s.length(); i<width; i++) {
+            buffer.append(' ');
+        }
+        return buffer.append(s).toString();
+    }
+}